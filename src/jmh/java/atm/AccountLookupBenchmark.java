@@ -0,0 +1,61 @@
+package atm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Registry lookup against the list scan it replaced, for growing numbers of accounts.
+// Ten million accounts needs a larger heap: -p accounts=10000000 -jvmArgs -Xmx4g
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class AccountLookupBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int accounts;
+
+    private Ledger ledger;
+    private List<ATMSimulator> list;
+
+    @Setup
+    public void setUp() {
+        PasscodeHash passcode = PasscodeHash.create(0, 1); // Shared by every account; hashing millions would dominate the setup
+        ledger = new Ledger(new AccountRegistry(accounts), 1024, new PasscodeHasher(1, 1, null));
+        list = new ArrayList<>(accounts);
+        for (int i = 0; i < accounts; i++) {
+            ledger.restoreAccount(i, passcode, 0);
+            list.add(ledger.find(i));
+        }
+    }
+
+    @Benchmark
+    public ATMSimulator lookup() {
+        return ledger.find(ThreadLocalRandom.current().nextInt(accounts));
+    }
+
+    @Benchmark
+    public ATMSimulator scan() {
+        int number = ThreadLocalRandom.current().nextInt(accounts);
+        for (ATMSimulator account : list) {
+            if (account.getAccountNumber() == number) {
+                return account;
+            }
+        }
+        return null;
+    }
+}
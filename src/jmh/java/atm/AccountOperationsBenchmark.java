@@ -0,0 +1,124 @@
+package atm;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Deposit, withdraw and transfer on the ledger alone: one thread on two accounts, every thread on the same
+// four accounts (so every update fights over the same balances and stripes), and every thread on a pair of
+// its own (which shows how throughput scales when nothing is shared).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountOperationsBenchmark {
+    @State(Scope.Thread)
+    public static class TwoAccounts {
+        Ledger ledger;
+        ATMSimulator a;
+        ATMSimulator b;
+        boolean forward;
+
+        @Setup
+        public void setUp() {
+            ledger = newLedger();
+            a = ledger.createAccount(1, 1);
+            b = ledger.createAccount(2, 2);
+            ledger.deposit(a, Long.MAX_VALUE / 4);
+            ledger.deposit(b, Long.MAX_VALUE / 4);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class HotAccounts {
+        Ledger ledger;
+        final ATMSimulator[] hot = new ATMSimulator[4];
+        final AtomicInteger nextPair = new AtomicInteger();
+
+        @Setup
+        public void setUp() {
+            ledger = newLedger();
+            for (int i = 0; i < hot.length; i++) {
+                hot[i] = ledger.createAccount(i + 1, i + 1);
+                ledger.deposit(hot[i], Long.MAX_VALUE / 8);
+            }
+        }
+    }
+
+    // A pair of accounts no other thread touches, on the shared ledger
+    @State(Scope.Thread)
+    public static class OwnPair {
+        ATMSimulator a;
+        ATMSimulator b;
+        boolean forward;
+
+        @Setup
+        public void setUp(HotAccounts shared) {
+            int pair = shared.nextPair.getAndIncrement();
+            a = shared.ledger.createAccount(1000 + 2 * pair, 1);
+            b = shared.ledger.createAccount(1001 + 2 * pair, 1);
+            shared.ledger.deposit(a, Long.MAX_VALUE / 8);
+            shared.ledger.deposit(b, Long.MAX_VALUE / 8);
+        }
+    }
+
+    @Benchmark
+    public TransactionResult deposit(TwoAccounts state) {
+        return state.ledger.deposit(state.a, 1);
+    }
+
+    @Benchmark
+    public TransactionResult withdraw(TwoAccounts state) {
+        return state.ledger.withdraw(state.a, 1);
+    }
+
+    @Benchmark
+    public TransactionResult transfer(TwoAccounts state) {
+        state.forward = !state.forward;
+        return state.forward ? state.ledger.transfer(state.a, state.b, 1) : state.ledger.transfer(state.b, state.a, 1);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public TransactionResult depositContended(HotAccounts state) {
+        return state.ledger.deposit(state.hot[ThreadLocalRandom.current().nextInt(4)], 1);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public TransactionResult withdrawContended(HotAccounts state) {
+        return state.ledger.withdraw(state.hot[ThreadLocalRandom.current().nextInt(4)], 1);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public TransactionResult transferContended(HotAccounts state) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return state.ledger.transfer(state.hot[random.nextInt(4)], state.hot[random.nextInt(4)], 1);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public TransactionResult transferUncontended(HotAccounts state, OwnPair own) {
+        own.forward = !own.forward;
+        return own.forward ? state.ledger.transfer(own.a, own.b, 1) : state.ledger.transfer(own.b, own.a, 1);
+    }
+
+    // Passcodes hashed with a single PBKDF2 iteration, so creating accounts for the benchmarks is quick
+    static Ledger newLedger() {
+        return new Ledger(new AccountRegistry(), 1024, new PasscodeHasher(1, 1, null));
+    }
+}
@@ -0,0 +1,176 @@
+package atm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the JMH benchmarks for the hot paths, with the GC profiler attached so every result also shows the bytes
+// allocated per operation, and keeps a baseline to accept or reject later changes against:
+//
+//   ./gradlew jmh                                                   run everything and print a table
+//   ./gradlew jmh --args="--out results.csv"                        also save the results as a baseline
+//   ./gradlew jmh --args="--baseline results.csv"                   compare with a saved baseline; exits with 1 on a regression
+//   ./gradlew jmh --args="--filter AccountLookup --accounts 10000000 --jvm-args -Xmx4g"
+//
+// Each benchmark runs in a fresh JVM (--forks) after --warmup-iterations unmeasured one-second rounds.
+public class Benchmarks {
+    private static final double TOLERANCE = 0.10; // A benchmark more than 10% slower than its baseline is a regression
+    private static final String ALLOCATION = "gc.alloc.rate.norm"; // Bytes per operation, from the GC profiler
+
+    private static final class Measurement {
+        final String name;
+        final double nanosPerOp;
+        final double bytesPerOp;
+
+        Measurement(String name, double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        Path out = null;
+        Path baseline = null;
+        String filter = "atm\\..*Benchmark";
+        String accounts = null;
+        String jvmArgs = null;
+        int forks = -1; // -1 leaves each benchmark's own setting
+        int warmupIterations = -1;
+        int iterations = -1;
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (!option.startsWith("--") || i + 1 == args.length) {
+                usage(option.startsWith("--") ? "Missing value for " + option : "Unknown option: " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--out" -> out = Paths.get(value);
+                    case "--baseline" -> baseline = Paths.get(value);
+                    case "--filter" -> filter = value;
+                    case "--accounts" -> accounts = value;
+                    case "--jvm-args" -> jvmArgs = value;
+                    case "--forks" -> forks = Integer.parseInt(value);
+                    case "--warmup-iterations" -> warmupIterations = Integer.parseInt(value);
+                    case "--iterations" -> iterations = Integer.parseInt(value);
+                    default -> usage("Unknown option: " + option);
+                }
+            } catch (NumberFormatException e) {
+                usage("Not a number for " + option + ": " + value);
+            }
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(filter)
+                .addProfiler(GCProfiler.class)
+                .timeUnit(TimeUnit.NANOSECONDS);
+        if (accounts != null) {
+            options.param("accounts", accounts.split(","));
+        }
+        if (jvmArgs != null) {
+            options.jvmArgsAppend(jvmArgs.split(" "));
+        }
+        if (forks >= 0) {
+            options.forks(forks);
+        }
+        if (warmupIterations >= 0) {
+            options.warmupIterations(warmupIterations);
+        }
+        if (iterations > 0) {
+            options.measurementIterations(iterations);
+        }
+        List<Measurement> results = summarize(new Runner(options.build()).run());
+
+        System.out.println();
+        for (Measurement result : results) {
+            System.out.println(String.format(Locale.ROOT, "%-60s %14.1f ns/op %14.0f ops/s %10.1f B/op",
+                    result.name, result.nanosPerOp, 1e9 / result.nanosPerOp, result.bytesPerOp));
+        }
+        if (out != null) {
+            save(results, out);
+        }
+        if (baseline != null && !compare(results, baseline)) {
+            System.exit(1);
+        }
+    }
+
+    private static void usage(String problem) {
+        System.out.println(problem);
+        System.out.println("Usage: Benchmarks [--out <results.csv>] [--baseline <results.csv>] [--filter <regex>]");
+        System.out.println("                  [--accounts <n,n,...>] [--jvm-args \"<options>\"] [--forks <n>]");
+        System.out.println("                  [--warmup-iterations <n>] [--iterations <n>]");
+        System.exit(1);
+    }
+
+    // One line per benchmark and parameter value, named e.g. "AccountLookupBenchmark.lookup accounts=1000"
+    private static List<Measurement> summarize(Collection<RunResult> runs) {
+        List<Measurement> results = new ArrayList<>();
+        for (RunResult run : runs) {
+            var params = run.getParams();
+            String benchmark = params.getBenchmark();
+            StringBuilder name = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1));
+            for (String key : params.getParamsKeys()) {
+                name.append(' ').append(key).append('=').append(params.getParam(key));
+            }
+            Result<?> allocation = run.getSecondaryResults().get(ALLOCATION);
+            results.add(new Measurement(name.toString(), run.getPrimaryResult().getScore(),
+                    allocation != null ? allocation.getScore() : Double.NaN));
+        }
+        return results;
+    }
+
+    private static void save(List<Measurement> results, Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("benchmark,ns_per_op,bytes_per_op");
+        for (Measurement result : results) {
+            lines.add(result.name + "," + String.format(Locale.ROOT, "%.3f,%.3f", result.nanosPerOp, result.bytesPerOp));
+        }
+        Files.write(path, lines);
+    }
+
+    // Reports every benchmark that got slower than the tolerance allows or started allocating.
+    // Returns false if there was any such regression.
+    private static boolean compare(List<Measurement> results, Path baselinePath) throws IOException {
+        Map<String, double[]> baseline = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(baselinePath)) {
+            String[] fields = line.split(",");
+            if (fields.length == 3 && !fields[0].equals("benchmark")) {
+                baseline.put(fields[0], new double[]{Double.parseDouble(fields[1]), Double.parseDouble(fields[2])});
+            }
+        }
+        boolean passed = true;
+        System.out.println();
+        System.out.println("Compared with " + baselinePath + ":");
+        for (Measurement result : results) {
+            double[] before = baseline.get(result.name);
+            if (before == null) {
+                continue;
+            }
+            double change = result.nanosPerOp / before[0] - 1;
+            boolean slower = change > TOLERANCE;
+            boolean allocates = result.bytesPerOp > before[1] + 1; // Allow for measurement noise below a byte
+            String verdict = slower || allocates ? "REGRESSION" : "ok";
+            passed &= !(slower || allocates);
+            System.out.println(String.format(Locale.ROOT, "%-60s %+7.1f%% time, %+8.1f B/op  %s",
+                    result.name, change * 100, result.bytesPerOp - before[1], verdict));
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,47 @@
+package atm;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Choosing and setting aside the notes for a withdrawal, then putting them back so the cassettes never run dry
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CashDispenseBenchmark {
+    private static final long[] AMOUNTS = {20, 40, 60, 100, 140, 200, 260, 300, 500, 990}; // Dollars
+
+    private CashCassettes machine;
+
+    @Setup
+    public void setUp() {
+        machine = CashCassettes.fleet(CashCassettes.Loadout.parse(CashCassettes.DEFAULT_LOADOUT), 1).get(0);
+    }
+
+    @Benchmark
+    public int dispense() {
+        CashCassettes.Dispense notes = machine.reserve(AMOUNTS[ThreadLocalRandom.current().nextInt(AMOUNTS.length)] * Money.CENTS_PER_DOLLAR);
+        notes.release();
+        return notes.notes(0);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int dispenseOneMachineConcurrent() {
+        return dispense();
+    }
+}
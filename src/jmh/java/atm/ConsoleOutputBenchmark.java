@@ -0,0 +1,57 @@
+package atm;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The menu methods print two lines per operation; printing to a stream that discards everything
+// still pays for building the lines, copying them out and the PrintStream lock
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConsoleOutputBenchmark {
+    private final Screen discard = new Screen(new PrintStream(OutputStream.nullOutputStream()));
+    private ATMSimulator a;
+    private ATMSimulator b;
+
+    @Setup
+    public void setUp() {
+        Ledger ledger = AccountOperationsBenchmark.newLedger();
+        a = ledger.createAccount(1, 1);
+        b = ledger.createAccount(2, 2);
+    }
+
+    @Benchmark
+    public long depositWithConsoleOutput() {
+        a.deposit(1, discard);
+        return a.getBalance();
+    }
+
+    // One transfer each way, so the balances stay put
+    @Benchmark
+    public long transferWithConsoleOutput() {
+        a.transfer(1, b, discard);
+        b.transfer(1, a, discard);
+        return a.getBalance();
+    }
+
+    @Benchmark
+    public long checkBalanceWithConsoleOutput() {
+        a.checkBalance(discard);
+        return a.getBalance();
+    }
+}
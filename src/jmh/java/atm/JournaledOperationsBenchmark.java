@@ -0,0 +1,67 @@
+package atm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Deposits and transfers with a journal attached (fsync policy NONE, so the disk speed does not dominate)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JournaledOperationsBenchmark {
+    private Path directory;
+    private Journal journal;
+    private Ledger ledger;
+    private ATMSimulator a;
+    private ATMSimulator b;
+    private boolean forward;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("atm-bench");
+        ledger = AccountOperationsBenchmark.newLedger();
+        journal = new Journal(directory.resolve("bench.journal"), Journal.FsyncPolicy.NONE);
+        ledger.recover(journal);
+        a = ledger.createAccount(1, 1);
+        b = ledger.createAccount(2, 2);
+        ledger.deposit(a, Long.MAX_VALUE / 4);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        journal.close();
+        try (var files = Files.list(directory)) { // Only the journal's own files are written here
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public TransactionResult depositJournaled() {
+        return ledger.deposit(a, 1);
+    }
+
+    @Benchmark
+    public TransactionResult transferJournaled() {
+        forward = !forward;
+        return forward ? ledger.transfer(a, b, 1) : ledger.transfer(b, a, 1);
+    }
+}
@@ -0,0 +1,69 @@
+package atm;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Full logins at the real PBKDF2 cost. Repeated logins to the same accounts are what the cache is for.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoginBenchmark {
+    private static final int ACCOUNTS = 64;
+    private static final int PASSCODE = 1234;
+
+    private Ledger cached;
+    private Ledger uncached;
+
+    @Setup
+    public void setUp() {
+        int iterations = PasscodeHasher.DEFAULT_ITERATIONS;
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        PasscodeHash passcode = PasscodeHash.create(PASSCODE, iterations);
+        cached = new Ledger(new AccountRegistry(), 1024, PasscodeHasher.withDefaults(iterations));
+        uncached = new Ledger(new AccountRegistry(), 1024, new PasscodeHasher(iterations, workers, null));
+        for (int i = 0; i < ACCOUNTS; i++) {
+            cached.restoreAccount(i, passcode, 0);
+            uncached.restoreAccount(i, passcode, 0);
+        }
+        for (int i = 0; i < ACCOUNTS; i++) {
+            cached.login(i, PASSCODE); // Fill the cache, as a burst of re-logins would find it
+        }
+    }
+
+    @Benchmark
+    public ATMSimulator loginCached() {
+        return cached.login(ThreadLocalRandom.current().nextInt(ACCOUNTS), PASSCODE);
+    }
+
+    @Benchmark
+    public ATMSimulator loginUncached() {
+        return uncached.login(ThreadLocalRandom.current().nextInt(ACCOUNTS), PASSCODE);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ATMSimulator loginCachedConcurrent() {
+        return loginCached();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ATMSimulator loginUncachedConcurrent() {
+        return loginUncached();
+    }
+}
@@ -0,0 +1,55 @@
+package atm;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The login lockout's table at full size (1M entries) with 500k keys that have failed before, checked in random
+// order, so most checks miss the cache as they would for logins to random accounts
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RateLimiterBenchmark {
+    private static final int KEYS = 500_000;
+
+    private final RateLimiter limiter = new RateLimiter(1 << 20, 5, 5, TimeUnit.MINUTES);
+    private final int[] order = new int[1 << 20]; // Keys to look up, half of them known to the table
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (int key = 0; key < KEYS; key++) {
+            limiter.recordFailure(key);
+        }
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < order.length; i++) {
+            order[i] = random.nextInt(2 * KEYS);
+        }
+    }
+
+    // What every login pays: is this account locked out?
+    @Benchmark
+    public boolean check() {
+        return limiter.isBlocked(order[next++ & order.length - 1]);
+    }
+
+    // A wrong passcode: the check, then one more failure on the same key
+    @Benchmark
+    public boolean checkAndRecord() {
+        int key = order[next++ & order.length - 1];
+        return limiter.isBlocked(key) || limiter.recordFailure(key);
+    }
+}
@@ -0,0 +1,500 @@
+package atm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+
+public class ATMSimulator {
+    private final int accountNumber; // Immutable account number
+    private final Ledger ledger; // Engine that performs every operation on this account
+    private volatile PasscodeHash passcode; // Only the salted hash is kept
+    private volatile long balance = 0; // Balance in cents
+
+    // Balance updates use compare-and-set so several threads can operate on one account without locks
+    private static final VarHandle BALANCE;
+    private static final int MINI_STATEMENT_ENTRIES = 10;
+
+    static {
+        try {
+            BALANCE = MethodHandles.lookup().findVarHandle(ATMSimulator.class, "balance", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // The balance is private to the account and only changes through addBalance, subtractBalance and adjustBalance,
+    // all compare-and-set or atomic add on the BALANCE handle.
+    // Credits the amount unless the balance would overflow, in which case nothing changes and false is returned
+    boolean addBalance(long amount) {
+        long current;
+        long updated;
+        do {
+            current = this.balance;
+            if (current > Long.MAX_VALUE - amount) {
+                return false;
+            }
+            updated = current + amount;
+        } while (!BALANCE.compareAndSet(this, current, updated));
+        return true;
+    }
+
+    // Debits the amount only if the balance covers it. The check and the update are one atomic step.
+    boolean subtractBalance(long amount) {
+        long current;
+        do {
+            current = this.balance;
+            if (amount > current) {
+                return false;
+            }
+        } while (!BALANCE.compareAndSet(this, current, current - amount));
+        return true;
+    }
+
+    // Applies a change read back from the journal. No checks: the journal only holds changes that already succeeded.
+    void adjustBalance(long delta) {
+        BALANCE.getAndAdd(this, delta);
+    }
+
+    void setPasscode(PasscodeHash passcode) {
+        this.passcode = passcode;
+    }
+
+    // Constructor to initialize account with account number and passcode (accounts are created through the ledger)
+    ATMSimulator(Ledger ledger, int accountNumber, PasscodeHash passcode) {
+        this.ledger = ledger;
+        this.accountNumber = accountNumber;
+        this.passcode = passcode;
+    }
+
+    // Getter methods for account details
+    public int getAccountNumber() {
+        return accountNumber;
+    }
+
+    // Balance in cents
+    public long getBalance() {
+        return balance;
+    }
+
+    // Only for writing snapshots; everything else goes through validatePasscode()
+    PasscodeHash passcode() {
+        return passcode;
+    }
+
+    // Validates passcode without exposing it for security reasons. (Without using getPasscode())
+    // Hashes the input on the ledger's hashing threads unless it was verified moments ago.
+    public boolean validatePasscode(int inputPasscode) {
+        return ledger.passcodes().verify(accountNumber, passcode, inputPasscode);
+    }
+
+    // Method to display account balance
+    public void checkBalance(Screen screen) {
+        printBalance(ledger.balance(this), screen);
+    }
+
+    // Method to deposit money into the account
+    public void deposit(long amount, Screen screen) {
+        switch (ledger.deposit(this, amount)) {
+            case SUCCESS -> screen.print("You have deposited $").money(amount).print(" to your account.").println();
+            case BALANCE_OVERFLOW -> screen.print("This deposit would exceed the maximum balance. Please enter a smaller amount.").println();
+            default -> screen.print("Invalid deposit amount. Please enter a positive value.").println();
+        }
+        printBalance(this.balance, screen);
+    }
+
+    // Method to withdraw money from the account
+    public void withdraw(long amount, Screen screen) {
+        switch (ledger.withdraw(this, amount)) {
+            case SUCCESS -> screen.print("You have withdrawn $").money(amount).print(" from your account.").println();
+            case INVALID_AMOUNT -> screen.print("Invalid withdrawal amount. Please enter a positive value.").println();
+            default -> screen.print("Invalid amount. Please try again.").println();
+        }
+        printBalance(this.balance, screen);
+    }
+
+    // Method to withdraw money as notes from an ATM's cassettes. The notes are set aside first, so the account
+    // is only debited for cash the machine can actually hand out.
+    public void withdraw(long amount, CashCassettes cash, Screen screen) {
+        if (amount <= 0) {
+            withdraw(amount, screen); // Turned down by the ledger without touching the cassettes
+            return;
+        }
+        CashCassettes.Dispense notes = cash.reserve(amount);
+        if (notes == null) {
+            if (cash.planner().isDispensable(amount)) {
+                screen.print("This ATM does not have the notes for $").money(amount).print(" right now. Please try a different amount.\n").println();
+            } else {
+                screen.print("This ATM cannot dispense $").money(amount).print(". Please enter an amount it can pay in notes, up to $")
+                        .money(cash.planner().maxAmount()).print(".\n").println();
+            }
+            return;
+        }
+        if (ledger.withdraw(this, amount) == TransactionResult.SUCCESS) {
+            notes.commit();
+            screen.print("You have withdrawn $").money(amount).print(" from your account. Please take your cash: ").print(notes.toString()).print('.').println();
+        } else {
+            notes.release();
+            screen.print("Invalid amount. Please try again.").println();
+        }
+        printBalance(this.balance, screen);
+    }
+
+    // Checks the recipient before the amount is asked for, and says why if it cannot receive a transfer
+    public boolean checkRecipient(int recipientNumber, Screen screen) {
+        TransactionResult result = ledger.checkRecipient(this, recipientNumber);
+        if (result != TransactionResult.SUCCESS) {
+            printTransfer(result, 0, recipientNumber, screen);
+        }
+        return result == TransactionResult.SUCCESS;
+    }
+
+    // Method to transfer money to another account
+    public void transfer(long amount, ATMSimulator recipient, Screen screen) {
+        printTransfer(ledger.transfer(this, recipient, amount), amount, recipient.getAccountNumber(), screen);
+    }
+
+    // Method to transfer money to an account on another shard
+    public void transfer(long amount, int recipientNumber, Screen screen) {
+        printTransfer(ledger.transferToShard(this, recipientNumber, amount), amount, recipientNumber, screen);
+    }
+
+    private void printTransfer(TransactionResult result, long amount, int recipientNumber, Screen screen) {
+        switch (result) {
+            case SUCCESS -> {
+                screen.print("You have transferred $").money(amount).print(" to account ").print(recipientNumber).println();
+                printBalance(this.balance, screen);
+            }
+            case INVALID_RECIPIENT -> screen.print("Invalid recipient account number. Please try again.").println();
+            case SELF_TRANSFER -> screen.print("You cannot transfer money to yourself. Please select a different recipient.\n").println();
+            case BALANCE_OVERFLOW -> screen.print("The recipient's balance cannot hold this amount. Please try a smaller amount.").println();
+            case SHARD_UNAVAILABLE -> screen.print("The recipient's bank cannot be reached right now. Please try again later.\n").println();
+            default -> screen.print("Invalid amount. Please try again.").println();
+        }
+    }
+
+    private static void printBalance(long balance, Screen screen) {
+        screen.print("Your balance is: $").money(balance).print('\n').println();
+    }
+
+    // Method to print the latest transactions, newest first
+    public void miniStatement(Screen screen) {
+        TransactionHistory history = ledger.history();
+        if (history == null) {
+            screen.print("Transaction history is not available.\n").println();
+            return;
+        }
+        List<TransactionHistory.Entry> entries;
+        try {
+            entries = history.last(this, MINI_STATEMENT_ENTRIES);
+        } catch (IOException e) {
+            screen.print("Your transaction history could not be read. Please try again later.\n").println();
+            return;
+        }
+        if (entries.isEmpty()) {
+            screen.print("No transactions yet.").println();
+        }
+        for (TransactionHistory.Entry entry : entries) {
+            screen.print(entry.toString()).println();
+        }
+        printBalance(ledger.balance(this), screen);
+    }
+
+    // Method to change the account's passcode
+    public void changePasscode(int newPasscode, Screen screen) {
+        ledger.changePasscode(this, newPasscode);
+        screen.print("Passcode changed successfully!\n").println();
+    }
+
+    public static void main(String[] args) {
+        Path journalPath = Paths.get("atm.journal");
+        Journal.FsyncPolicy fsyncPolicy = null;
+        long snapshotIntervalSeconds = 300;
+        Path metricsPath = null;
+        int statementAccount = -1;
+        LocalDate statementFrom = LocalDate.now().minusMonths(1);
+        LocalDate statementTo = LocalDate.now();
+        long metricsIntervalSeconds = 60;
+        Path batchPath = null;
+        Path reportPath = null;
+        boolean batchHistory = false;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int serverPort = -1;
+        int shard = -1;
+        String shardAddresses = null;
+        String loadout = CashCassettes.DEFAULT_LOADOUT;
+        int atmCount = 1;
+        Path cashSimulationPath = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--journal" -> journalPath = Paths.get(optionValue(args, ++i));
+                case "--fsync" -> fsyncPolicy = Journal.FsyncPolicy.parse(optionValue(args, ++i));
+                case "--snapshot-interval" -> snapshotIntervalSeconds = Long.parseLong(optionValue(args, ++i));
+                case "--statement" -> statementAccount = Integer.parseInt(optionValue(args, ++i));
+                case "--from" -> statementFrom = LocalDate.parse(optionValue(args, ++i));
+                case "--to" -> statementTo = LocalDate.parse(optionValue(args, ++i));
+                case "--metrics" -> metricsPath = Paths.get(optionValue(args, ++i));
+                case "--metrics-interval" -> metricsIntervalSeconds = Long.parseLong(optionValue(args, ++i));
+                case "--batch" -> batchPath = Paths.get(optionValue(args, ++i));
+                case "--report" -> reportPath = Paths.get(optionValue(args, ++i));
+                case "--history" -> batchHistory = true;
+                case "--workers" -> workers = Integer.parseInt(optionValue(args, ++i));
+                case "--server" -> serverPort = Integer.parseInt(optionValue(args, ++i));
+                case "--shard" -> shard = Integer.parseInt(optionValue(args, ++i));
+                case "--shards" -> shardAddresses = optionValue(args, ++i);
+                case "--cassettes" -> loadout = optionValue(args, ++i);
+                case "--atms" -> atmCount = Integer.parseInt(optionValue(args, ++i));
+                case "--simulate-cash" -> cashSimulationPath = Paths.get(optionValue(args, ++i));
+                default -> exitWithUsage("Unknown option: " + args[i]);
+            }
+        }
+
+        if ((shard >= 0) != (shardAddresses != null)) {
+            exitWithUsage("--shard and --shards go together");
+        }
+        CashCassettes.Loadout cassettes = null;
+        try {
+            cassettes = CashCassettes.Loadout.parse(loadout);
+            cassettes.planner(); // Rejects denominations the dispenser cannot handle before anything else starts
+        } catch (IllegalArgumentException e) {
+            exitWithUsage("Invalid --cassettes: " + e.getMessage());
+        }
+        if (atmCount <= 0) {
+            exitWithUsage("--atms must be at least 1");
+        }
+
+        if (cashSimulationPath != null) {
+            runCashSimulation(cassettes, cashSimulationPath); // Only the machines' cash; no accounts or journal involved
+            return;
+        }
+
+        if (fsyncPolicy == null) {
+            // A batch is made durable as a whole when the journal is closed, so its transactions need not wait one by one
+            fsyncPolicy = batchPath != null ? Journal.FsyncPolicy.INTERVAL : Journal.FsyncPolicy.ALWAYS;
+        }
+
+        // Rebuild every account and balance from the latest snapshot and the journal written since
+        Path snapshotPath = journalPath.resolveSibling(journalPath.getFileName() + ".snapshot");
+        Ledger ledger = new Ledger();
+        Journal journal = new Journal(journalPath, fsyncPolicy);
+        try {
+            if (shardAddresses != null) {
+                ledger.enableSharding(ShardMap.parse(shard, shardAddresses));
+            }
+            ledger.recover(journal, snapshotPath);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not load the journal " + journalPath + ": " + e.getMessage());
+            System.exit(1);  // Terminate the program
+        }
+
+        // Keep a dated history of every transaction for statements; the ATM still works without it.
+        // Batches skip it unless asked: recording every line is a large share of their cost per transaction.
+        Path historyPath = journalPath.resolveSibling(journalPath.getFileName() + ".history");
+        TransactionHistory history = null;
+        if (batchPath == null || batchHistory) {
+            try {
+                history = new TransactionHistory(historyPath, ledger.accounts());
+                ledger.attachHistory(history);
+            } catch (IOException e) {
+                System.out.println("Could not open the transaction history " + historyPath + ": " + e.getMessage());
+            }
+        }
+
+        if (statementAccount >= 0) {
+            printStatement(ledger, statementAccount, statementFrom, statementTo);
+            closeQuietly(history, journal, journalPath);
+            return;
+        }
+
+        if (ledger.shards() != null) {
+            try {
+                ledger.shards().start(); // Also resumes delivering the transfers recovered from the journal
+            } catch (IOException e) {
+                System.out.println("Could not listen for the other shards on " + ledger.shards().map().address(shard) + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        try {
+            ledger.metrics().registerMBeans(); // Visible in jconsole or any other JMX client
+        } catch (JMException e) {
+            System.out.println("Could not publish the metrics over JMX: " + e.getMessage());
+        }
+
+        // Take snapshots in the background so the journal to replay at the next start stays short
+        ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (snapshotIntervalSeconds > 0) {
+            snapshotter.scheduleWithFixedDelay(() -> {
+                try {
+                    ledger.snapshot(snapshotPath);
+                } catch (IOException e) {
+                    System.out.println("Could not write the snapshot " + snapshotPath + ": " + e.getMessage());
+                }
+            }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+        // The same thread rewrites the metrics file, so it always shows recent numbers
+        Path metricsFile = metricsPath != null ? metricsPath : journalPath.resolveSibling(journalPath.getFileName() + ".metrics");
+        if (metricsIntervalSeconds > 0) {
+            snapshotter.scheduleWithFixedDelay(() -> dumpMetrics(ledger, metricsFile),
+                    metricsIntervalSeconds, metricsIntervalSeconds, TimeUnit.SECONDS);
+        }
+
+        // Initializing default accounts
+        ledger.createAccount(123, 123);
+        ledger.createAccount(456, 456);
+
+        if (batchPath != null) {
+            runBatch(ledger, batchPath, reportPath != null ? reportPath : batchPath.resolveSibling(batchPath.getFileName() + ".report"), workers);
+        } else if (serverPort >= 0) {
+            runServer(ledger, serverPort, CashCassettes.fleet(cassettes, atmCount));
+        } else {
+            CashCassettes cash = CashCassettes.fleet(cassettes, 1).get(0);
+            new AtmSession(ledger, AtmSession.newInvalidInputLimiter(1), System.in, System.out, cash).run();
+        }
+        if (ledger.shards() != null) {
+            try {
+                ledger.shards().close(); // Transfers still in flight are in the journal and resume at the next start
+            } catch (IOException e) {
+                System.out.println("Could not stop talking to the other shards: " + e.getMessage());
+            }
+        }
+
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES); // Let a snapshot in progress finish
+            ledger.snapshot(snapshotPath); // Start the next run from a snapshot instead of the whole journal
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Could not write the snapshot " + snapshotPath + ": " + e.getMessage());
+        }
+        if (metricsIntervalSeconds > 0) {
+            dumpMetrics(ledger, metricsFile);
+        }
+        closeQuietly(history, journal, journalPath);
+    }
+
+    // Writes out anything still buffered before the program ends
+    private static void closeQuietly(TransactionHistory history, Journal journal, Path journalPath) {
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException e) {
+                System.out.println("Could not write the transaction history: " + e.getMessage());
+            }
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.out.println("Could not write the journal " + journalPath + ": " + e.getMessage());
+        }
+    }
+
+    // Prints every transaction of the account between two dates (both inclusive), oldest first
+    private static void printStatement(Ledger ledger, int accountNumber, LocalDate from, LocalDate to) {
+        ATMSimulator account = ledger.find(accountNumber);
+        if (account == null || ledger.history() == null) {
+            System.out.println("No transaction history for account " + accountNumber);
+            return;
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            List<TransactionHistory.Entry> entries = ledger.history().between(account,
+                    from.atStartOfDay(zone).toInstant().toEpochMilli(), to.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli());
+            System.out.println("Statement for account " + accountNumber + " from " + from + " to " + to);
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                System.out.println(entries.get(i));
+            }
+            System.out.println(entries.size() + " transactions. Current balance: $" + Money.format(account.getBalance()));
+        } catch (IOException e) {
+            System.out.println("Could not read the transaction history: " + e.getMessage());
+        }
+    }
+
+    private static void dumpMetrics(Ledger ledger, Path metricsPath) {
+        try {
+            ledger.metrics().dump(metricsPath);
+        } catch (IOException e) {
+            System.out.println("Could not write the metrics " + metricsPath + ": " + e.getMessage());
+        }
+    }
+
+    // Applies a whole file of transactions without the menu, e.g. for end-of-day settlement
+    private static void runBatch(Ledger ledger, Path batchPath, Path reportPath, int workers) {
+        try {
+            BatchProcessor.Summary summary = new BatchProcessor(ledger, workers).run(batchPath, reportPath);
+            System.out.println(summary);
+            System.out.println("Rejected transactions are listed in " + reportPath);
+        } catch (IOException e) {
+            System.out.println("Could not process the batch " + batchPath + ": " + e.getMessage());
+        }
+    }
+
+    // Replays a day of withdrawals against freshly loaded machines and reports when each ran out
+    private static void runCashSimulation(CashCassettes.Loadout loadout, Path withdrawalsPath) {
+        try {
+            CashSimulation simulation = new CashSimulation(loadout);
+            for (CashSimulation.MachineReport report : simulation.run(withdrawalsPath)) {
+                System.out.println(report);
+            }
+            System.out.println("Choosing the notes took " + simulation.meanPlanningNanos() + " ns per withdrawal on average.");
+        } catch (IOException e) {
+            System.out.println("Could not simulate the withdrawals in " + withdrawalsPath + ": " + e.getMessage());
+        }
+    }
+
+    // Serves the menu to many terminals over localhost until "stop" is typed on the console.
+    // Connections are dealt out to the machines in turn, so concurrent sessions draw on the same cassettes.
+    private static void runServer(Ledger ledger, int port, List<CashCassettes> machines) {
+        try (AtmServer server = new AtmServer(ledger, port, machines)) {
+            System.out.println("ATM server listening on localhost:" + server.port() + ". Type \"stop\" to shut it down.");
+            BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+            String line;
+            while ((line = console.readLine()) != null) {
+                if (line.trim().equalsIgnoreCase("stop")) {
+                    return;
+                }
+            }
+            server.join(); // No console attached (e.g. started in the background), so run until the process is killed
+        } catch (IOException e) {
+            System.out.println("Could not run the server on port " + port + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns the value that follows a command-line option, or exits if it is missing
+    private static String optionValue(String[] args, int index) {
+        if (index >= args.length) {
+            exitWithUsage("Missing value for option " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static void exitWithUsage(String message) {
+        System.out.println(message);
+        System.out.println("Usage: java -jar atm-simulator.jar [--journal <file>] [--fsync always|interval|none] [--snapshot-interval <seconds>]");
+        System.out.println("                                   [--metrics <file>] [--metrics-interval <seconds>]");
+        System.out.println("                                   [--shard <index> --shards <host:port>,<host:port>,...]");
+        System.out.println("                                   [--cassettes <dollars>x<notes>,...]");
+        System.out.println("       java -jar atm-simulator.jar --server <port> [--atms <count>] [journal and cassette options]");
+        System.out.println("       java -jar atm-simulator.jar --statement <account> [--from <yyyy-mm-dd>] [--to <yyyy-mm-dd>] [journal options]");
+        System.out.println("       java -jar atm-simulator.jar --batch <transactions.csv> [--report <file>] [--workers <count>] [--history] [journal options]");
+        System.out.println("       java -jar atm-simulator.jar --simulate-cash <withdrawals.csv> [--cassettes <dollars>x<notes>,...]");
+        System.exit(1);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,119 @@
+package atm;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+// Index of accounts keyed by account number.
+// Uses open addressing over a primitive int[] so lookups never box the key into an Integer.
+public class AccountRegistry {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    // One generation of the hash table. A slot is empty while its account is null.
+    // The account reference is written after the key, so a reader that sees the account also sees its key.
+    private static final class Table {
+        final int[] keys;
+        final AtomicReferenceArray<ATMSimulator> accounts;
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.accounts = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table;
+    private int size = 0; // Only read and written while holding the registry lock
+
+    public AccountRegistry() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // Pre-size the table for an expected number of accounts to avoid rehashing while loading
+    public AccountRegistry(int expectedAccounts) {
+        this.table = new Table(capacityFor(expectedAccounts));
+    }
+
+    // Looks up an account in O(1) without taking the lock. Returns null if the number is unknown.
+    public ATMSimulator get(int accountNumber) {
+        Table t = this.table;
+        for (int i = mix(accountNumber) & t.mask; ; i = (i + 1) & t.mask) {
+            ATMSimulator account = t.accounts.get(i);
+            if (account == null) {
+                return null; // Reached an empty slot, so the number is not in the table
+            }
+            if (t.keys[i] == accountNumber) {
+                return account;
+            }
+        }
+    }
+
+    public boolean contains(int accountNumber) {
+        return get(accountNumber) != null;
+    }
+
+    // Adds the account unless its number is already taken. The duplicate check and the insert happen as one step.
+    // Returns the account that was already registered, or null if the given account was added.
+    public synchronized ATMSimulator putIfAbsent(ATMSimulator account) {
+        int accountNumber = account.getAccountNumber();
+        ATMSimulator existing = get(accountNumber);
+        if (existing != null) {
+            return existing;
+        }
+        if (size + 1 > (int) (table.keys.length * LOAD_FACTOR)) {
+            table = resize(table, table.keys.length << 1); // Publish the bigger table before inserting into it
+        }
+        insert(table, account);
+        size++;
+        return null;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Calls the action for every registered account, in no particular order
+    public void forEach(Consumer<ATMSimulator> action) {
+        Table t = this.table;
+        for (int i = 0; i < t.keys.length; i++) {
+            ATMSimulator account = t.accounts.get(i);
+            if (account != null) {
+                action.accept(account);
+            }
+        }
+    }
+
+    private static void insert(Table t, ATMSimulator account) {
+        int accountNumber = account.getAccountNumber();
+        int i = mix(accountNumber) & t.mask;
+        while (t.accounts.get(i) != null) {
+            i = (i + 1) & t.mask; // Linear probing to the next free slot
+        }
+        t.keys[i] = accountNumber;
+        t.accounts.set(i, account); // Volatile write makes the key and the account visible together
+    }
+
+    private static Table resize(Table old, int capacity) {
+        Table bigger = new Table(capacity);
+        for (int i = 0; i < old.keys.length; i++) {
+            ATMSimulator account = old.accounts.get(i);
+            if (account != null) {
+                insert(bigger, account);
+            }
+        }
+        return bigger;
+    }
+
+    private static int capacityFor(int expectedAccounts) {
+        int needed = (int) Math.min(1L << 30, (long) Math.ceil(Math.max(expectedAccounts, 1) / (double) LOAD_FACTOR));
+        return Math.max(DEFAULT_CAPACITY, Integer.highestOneBit(needed - 1) << 1);
+    }
+
+    // Spreads sequential account numbers over the bits of an int, so that any slice of them (a table slot,
+    // a lock stripe, a worker) gets an even share. Every account-keyed table and stripe set hashes with this.
+    static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
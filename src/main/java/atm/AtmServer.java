@@ -0,0 +1,318 @@
+package atm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Serves the ATM menu to many terminals at once over a local TCP socket; all sessions share one ledger.
+// One selector thread accepts connections and reads what clients type. Complete lines go to a fixed pool of
+// workers, which run each connection's lines through its AtmSession one at a time and send back the output.
+// A session waiting for its user (or sitting out an invalid-input cooldown) holds no thread at all, so tens of
+// thousands of idle connections cost a few kilobytes each and the thread count stays fixed.
+//
+// Memory per connection is bounded too: the server stops reading from a client that has a full queue of lines
+// or output it has not taken yet, and carries on once it catches up.
+public class AtmServer implements Closeable {
+    private static final int MAX_QUEUED_LINES = 64;
+    private static final int MAX_LINE_LENGTH = 1024; // Anything longer is cut off; no answer needs more than a few digits
+
+    private final Ledger ledger;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final RateLimiter invalidInputs = AtmSession.newInvalidInputLimiter(1 << 16);
+    private final List<CashCassettes> machines; // Connections are dealt out to the machines in turn; empty for no cash
+    private int nextMachine; // Selector thread only
+    private volatile boolean closed;
+
+    // Listens on the loopback interface only; port 0 picks any free port
+    public AtmServer(Ledger ledger, int port) throws IOException {
+        this(ledger, port, List.of());
+    }
+
+    // Twice as many workers as processors, since a login waits for the passcode hashing pool
+    public AtmServer(Ledger ledger, int port, List<CashCassettes> machines) throws IOException {
+        this(ledger, port, machines, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    public AtmServer(Ledger ledger, int port, List<CashCassettes> machines, int workerCount) throws IOException {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be positive: " + workerCount);
+        }
+        this.ledger = ledger;
+        this.machines = machines;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        // The queue holds at most one task per connection, since a connection is only handed over while it has none
+        this.workers = Executors.newFixedThreadPool(workerCount, task -> new Thread(task, "atm-server-worker"));
+        this.selectorThread = new Thread(this::selectLoop, "atm-server-selector");
+        selectorThread.start();
+    }
+
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Waits until the server is closed
+    public void join() throws InterruptedException {
+        selectorThread.join();
+    }
+
+    // Stops accepting connections, disconnects every client and waits for the lines being handled to finish
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join(); // Closes every connection it accepted on the way out
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void selectLoop() {
+        try {
+            while (!closed) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isWritable()) {
+                            connection.send();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.out.println("ATM server stopped: " + e.getMessage());
+        } finally {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            System.out.println("Could not accept a connection: " + e.getMessage());
+            return;
+        }
+        CashCassettes cash = machines.isEmpty() ? null : machines.get(Math.floorMod(nextMachine++, machines.size()));
+        try {
+            Connection connection = new Connection(channel, cash);
+            connections.add(connection); // Registered before any of its lines can be handed to a worker
+            connection.start();
+        } catch (IOException e) {
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    // One client. The selector thread reads its lines into `lines`; at most one worker at a time takes them out,
+    // feeds them to the session and sends whatever the session printed. `lines` and the fields after it are guarded
+    // by `this`. `printed` belongs to whichever thread is running the session: only that thread moves its contents
+    // to `unsent`, under the lock, and the selector only ever flushes `unsent`.
+    private final class Connection implements Runnable {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteArrayOutputStream printed = new ByteArrayOutputStream(256);
+        private final AtmSession session;
+        private final ByteBuffer input = ByteBuffer.allocate(512); // Selector thread only
+        private final StringBuilder partialLine = new StringBuilder(); // Selector thread only
+
+        private final ArrayDeque<String> lines = new ArrayDeque<>();
+        private boolean scheduled; // A worker has been given this connection's lines
+        private boolean inputEnded; // The client closed its side, or the session finished
+        private ByteBuffer unsent = ByteBuffer.allocate(0);
+
+        Connection(SocketChannel channel, CashCassettes cash) throws IOException {
+            this.channel = channel;
+            this.session = new AtmSession(ledger, invalidInputs, new PrintStream(printed, false, StandardCharsets.UTF_8), cash);
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        // Shows the main menu; runs on the selector thread before any line has been read
+        void start() {
+            synchronized (this) {
+                session.start();
+                handOver();
+            }
+        }
+
+        // Selector thread: reads what has arrived and queues every complete line
+        void read() {
+            int count;
+            try {
+                count = channel.read(input);
+            } catch (IOException e) {
+                count = -1;
+            }
+            synchronized (this) {
+                if (count < 0) {
+                    inputEnded = true; // Lines already queued are still answered; the connection closes after them
+                } else {
+                    input.flip();
+                    while (input.hasRemaining()) {
+                        char c = (char) (input.get() & 0xff);
+                        if (c == '\n') {
+                            lines.add(partialLine.toString());
+                            partialLine.setLength(0);
+                        } else if (c != '\r' && partialLine.length() < MAX_LINE_LENGTH) {
+                            partialLine.append(c);
+                        }
+                    }
+                    input.clear();
+                }
+                schedule();
+                updateInterest();
+            }
+        }
+
+        // Worker: answers the queued lines one after another
+        @Override
+        public void run() {
+            while (true) {
+                String line;
+                synchronized (this) {
+                    line = session.isFinished() ? null : lines.poll();
+                    if (line == null) {
+                        scheduled = false;
+                        if (session.isFinished() || inputEnded) {
+                            inputEnded = true;
+                            lines.clear();
+                            if (!unsent.hasRemaining()) {
+                                close();
+                            }
+                        }
+                        updateInterest();
+                        return;
+                    }
+                }
+                session.onLine(line); // Outside the lock: a login may wait for the hashing pool
+                synchronized (this) {
+                    handOver();
+                }
+            }
+        }
+
+        // Hands the queued lines to a worker unless one already has them
+        private void schedule() {
+            if (!scheduled && (!lines.isEmpty() || inputEnded)) {
+                scheduled = true;
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    close(); // The server is shutting down
+                }
+            }
+        }
+
+        // Session thread, holding the lock: queues what the session printed behind what is still unsent and sends it
+        private void handOver() {
+            if (printed.size() > 0) {
+                ByteBuffer more = ByteBuffer.allocate(unsent.remaining() + printed.size());
+                more.put(unsent).put(printed.toByteArray()).flip();
+                printed.reset();
+                unsent = more;
+            }
+            send();
+        }
+
+        // Writes unsent output, as far as the client takes it without blocking; the selector finishes the rest when
+        // the socket can take more
+        synchronized void send() {
+            try {
+                channel.write(unsent);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (!unsent.hasRemaining() && inputEnded && !scheduled) {
+                close(); // The last answer has gone out
+            } else {
+                updateInterest();
+            }
+        }
+
+        // Reads only while the client is keeping up, and waits for the socket only while output is pending
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (!inputEnded && lines.size() < MAX_QUEUED_LINES && !unsent.hasRemaining()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (unsent.hasRemaining()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+                selector.wakeup();
+            }
+        }
+
+        synchronized void close() {
+            inputEnded = true;
+            connections.remove(this);
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+}
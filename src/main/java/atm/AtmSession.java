@@ -0,0 +1,407 @@
+package atm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One user's conversation with the ATM menu. The console runs a single session on System.in and System.out;
+// the server runs one session per connection. Each session keeps its own count of invalid inputs and its own cooldown.
+//
+// The session is driven by lines of input (onLine) and keeps track of which question it asked last, so it holds
+// no thread while it waits for the user: the server can keep thousands of idle sessions on a few threads.
+// Within a line, whitespace separates answers, so "2 123 123" logs in as three separate lines would.
+// After an invalid answer the rest of its line is dropped and the menu is shown again.
+public class AtmSession implements Runnable {
+    private static final AtomicInteger nextSessionId = new AtomicInteger();
+    private static final String BUSY = "The system is busy right now. Please try again in a moment.\n"; // Too many passcodes to hash
+
+    // The question the session is waiting to have answered
+    private enum State {
+        MAIN_MENU,
+        NEW_ACCOUNT_NUMBER,
+        NEW_ACCOUNT_PASSCODE,
+        LOGIN_NUMBER,
+        LOGIN_PASSCODE,
+        ACCOUNT_MENU,
+        DEPOSIT_AMOUNT,
+        WITHDRAW_AMOUNT,
+        TRANSFER_RECIPIENT,
+        TRANSFER_AMOUNT,
+        NEW_PASSCODE,
+        FINISHED
+    }
+
+    private final int sessionId = nextSessionId.incrementAndGet();
+    private final RateLimiter invalidInputs; // Shared by all sessions, keyed by session id
+    private final Ledger ledger;
+    private final InputStream in; // Null when the owner feeds lines through onLine
+    private final PrintStream out;
+    private final Screen screen; // Results with amounts in them, printed without building Strings
+    private final CashCassettes cash; // The machine this session runs on; null to pay withdrawals without counting notes
+
+    private State state = State.MAIN_MENU;
+    private boolean menuDue; // A menu was skipped during a cooldown and is shown before the next answer
+    private int enteredNumber; // Account number typed for a new account or a login
+    private ATMSimulator currentAccount; // Logged in account, or null
+    private int recipientNumber;
+    private ATMSimulator recipient; // Null if the recipient is on another shard
+
+    // Allows about three invalid inputs per ten seconds, like the original cooldown
+    public static RateLimiter newInvalidInputLimiter(int maxSessions) {
+        return new RateLimiter(Integer.highestOneBit(Math.max(maxSessions, 8) * 2 - 1), 3, 10, TimeUnit.SECONDS);
+    }
+
+    public AtmSession(Ledger ledger, RateLimiter invalidInputs, InputStream in, PrintStream out) {
+        this(ledger, invalidInputs, in, out, null);
+    }
+
+    // Reads its own input: run() serves the menu until the user exits or the input ends
+    public AtmSession(Ledger ledger, RateLimiter invalidInputs, InputStream in, PrintStream out, CashCassettes cash) {
+        this.ledger = ledger;
+        this.invalidInputs = invalidInputs;
+        this.in = in;
+        this.out = out;
+        this.screen = new Screen(out);
+        this.cash = cash;
+    }
+
+    // Fed by its owner: call start() once, then onLine() for every line the user sends
+    AtmSession(Ledger ledger, RateLimiter invalidInputs, PrintStream out, CashCassettes cash) {
+        this(ledger, invalidInputs, null, out, cash);
+    }
+
+    @Override
+    public void run() {
+        BufferedReader lines = new BufferedReader(new InputStreamReader(in));
+        try {
+            start();
+            while (!isFinished()) {
+                out.flush(); // A prompt such as "Enter deposit amount: " has no line end to flush it
+                String line = lines.readLine();
+                if (line == null) {
+                    return; // The input ended (console closed), so the session is over
+                }
+                onLine(line);
+            }
+        } catch (IOException e) {
+            // Same as the end of the input
+        } finally {
+            out.flush();
+        }
+    }
+
+    // Shows the main menu
+    void start() {
+        showMainMenu();
+    }
+
+    boolean isFinished() {
+        return state == State.FINISHED;
+    }
+
+    // Answers the questions asked so far with the words of one line
+    void onLine(String line) {
+        if (state == State.FINISHED) {
+            return;
+        }
+        if (invalidInputs.isBlocked(sessionId)) { // While cooling down, input is rejected straight away
+            long waitMillis = invalidInputs.retryAfterMillis(sessionId);
+            if (waitMillis > 0) {
+                out.println("Too many invalid inputs. Please wait " + seconds(waitMillis) + " more seconds before trying again.\n");
+            }
+            return;
+        }
+        if (menuDue) {
+            menuDue = false;
+            printMenu();
+        }
+        int end = 0;
+        while (state != State.FINISHED) {
+            int start = end;
+            while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+                start++;
+            }
+            if (start == line.length()) {
+                return;
+            }
+            end = start;
+            while (end < line.length() && !Character.isWhitespace(line.charAt(end))) {
+                end++;
+            }
+            if (!answer(line.substring(start, end))) {
+                return; // Invalid answer: the rest of the line is dropped
+            }
+        }
+    }
+
+    // Handles one answer to the current question; false if it was invalid
+    private boolean answer(String word) {
+        switch (state) {
+            case MAIN_MENU -> {
+                Integer option = parseInt(word, "Invalid input. Please enter a valid numeric value.");
+                if (option == null) {
+                    return false;
+                }
+                switch (option) {
+                    case 1 -> ask(State.NEW_ACCOUNT_NUMBER, "Enter a new account number: ");
+                    case 2 -> ask(State.LOGIN_NUMBER, "Enter your account number: ");
+                    case 3 -> {
+                        out.println("Exiting the program...\n");
+                        state = State.FINISHED;
+                    }
+                    default -> {
+                        out.println("Invalid option. Please try again.");
+                        showMainMenu();
+                    }
+                }
+            }
+            case NEW_ACCOUNT_NUMBER, LOGIN_NUMBER -> {
+                Integer number = parseInt(word, "Invalid input. Please enter valid numeric values.");
+                if (number == null) {
+                    return false;
+                }
+                enteredNumber = number;
+                if (state == State.NEW_ACCOUNT_NUMBER) {
+                    ask(State.NEW_ACCOUNT_PASSCODE, "Enter a new passcode: ");
+                } else {
+                    ask(State.LOGIN_PASSCODE, "Enter your passcode: ");
+                }
+            }
+            case NEW_ACCOUNT_PASSCODE -> {
+                Integer passcode = parseInt(word, "Invalid input. Please enter valid numeric values.");
+                if (passcode == null) {
+                    return false;
+                }
+                // Create the account only if the number is not already in use (checked and inserted in one step)
+                if (ledger.isRemote(enteredNumber)) {
+                    out.println("Account numbers like this one are opened at another branch. Please try a different number.\n");
+                } else {
+                    try {
+                        if (ledger.createAccount(enteredNumber, passcode) == null) {
+                            out.println("The account number you entered is already in use. Please try a different number.\n");
+                        } else {
+                            out.println("New account created successfully!\n");
+                        }
+                    } catch (RejectedExecutionException e) {
+                        out.println(BUSY);
+                    }
+                }
+                showMainMenu();
+            }
+            case LOGIN_PASSCODE -> {
+                Integer passcode = parseInt(word, "Invalid input. Please enter valid numeric values.");
+                if (passcode == null) {
+                    return false;
+                }
+                login(enteredNumber, passcode);
+            }
+            case ACCOUNT_MENU -> {
+                Integer option = parseInt(word, "Invalid input. Please enter a valid numeric value.");
+                if (option == null) {
+                    return false;
+                }
+                accountMenu(option);
+            }
+            case DEPOSIT_AMOUNT -> {
+                Long amount = parseAmount(word);
+                if (amount == null) {
+                    return false;
+                }
+                currentAccount.deposit(amount, screen); // The ledger turns down amounts that are not positive
+                showAccountMenu();
+            }
+            case WITHDRAW_AMOUNT -> {
+                Long amount = parseAmount(word);
+                if (amount == null) {
+                    return false;
+                }
+                if (cash != null) {
+                    currentAccount.withdraw(amount, cash, screen);
+                } else {
+                    currentAccount.withdraw(amount, screen);
+                }
+                showAccountMenu();
+            }
+            case TRANSFER_RECIPIENT -> {
+                Integer number = parseInt(word, "Invalid input. Please enter valid numeric values.");
+                if (number == null) {
+                    return false;
+                }
+                // Unknown accounts and the user's own are turned down by the ledger before the amount is asked for
+                if (currentAccount.checkRecipient(number, screen)) {
+                    recipientNumber = number;
+                    recipient = ledger.find(number); // Null for an account on another shard
+                    ask(State.TRANSFER_AMOUNT, "Enter transfer amount: ");
+                } else {
+                    showAccountMenu();
+                }
+            }
+            case TRANSFER_AMOUNT -> {
+                Long amount = parseAmount(word);
+                if (amount == null) {
+                    return false;
+                }
+                if (recipient == null) {
+                    currentAccount.transfer(amount, recipientNumber, screen);
+                } else {
+                    currentAccount.transfer(amount, recipient, screen);
+                }
+                showAccountMenu();
+            }
+            case NEW_PASSCODE -> {
+                Integer passcode = parseInt(word, "Invalid input. Please enter valid numeric values.");
+                if (passcode == null) {
+                    return false;
+                }
+                try {
+                    currentAccount.changePasscode(passcode, screen);
+                } catch (RejectedExecutionException e) {
+                    out.println(BUSY);
+                }
+                showAccountMenu();
+            }
+            default -> throw new IllegalStateException("Session is finished");
+        }
+        return true;
+    }
+
+    private void login(int accountNumber, int passcode) {
+        ATMSimulator account;
+        try {
+            account = ledger.login(accountNumber, passcode); // O(1) lookup by account number
+        } catch (RejectedExecutionException e) {
+            out.println(BUSY);
+            showMainMenu();
+            return;
+        }
+        long lockedMillis = account == null ? ledger.loginRetryAfterMillis(accountNumber) : 0;
+        if (lockedMillis > 0) { // Locked accounts are rejected without even checking the passcode
+            out.println("Too many failed attempts for this account. Please try again in " + seconds(lockedMillis) + " seconds.\n");
+        } else if (account == null && ledger.isRemote(accountNumber)) {
+            out.println("This account is held at another branch. Please use one of its ATMs.\n");
+        } else if (account == null) {
+            out.println("The account number or passcode is incorrect. Please try again.\n");
+        } else {
+            out.println("You have successfully logged in!\n");
+            currentAccount = account;
+            showAccountMenu();
+            return;
+        }
+        showMainMenu();
+    }
+
+    private void accountMenu(int option) {
+        switch (option) {
+            case 1 -> {  // Check balance
+                currentAccount.checkBalance(screen);
+                showAccountMenu();
+            }
+            case 2 -> ask(State.DEPOSIT_AMOUNT, "Enter deposit amount: ");
+            case 3 -> ask(State.WITHDRAW_AMOUNT, "Enter withdrawal amount: ");
+            case 4 -> ask(State.TRANSFER_RECIPIENT, "Enter recipient's account number: ");
+            case 5 -> ask(State.NEW_PASSCODE, "Enter new passcode: ");
+            case 6 -> {  // Last transactions
+                currentAccount.miniStatement(screen);
+                showAccountMenu();
+            }
+            case 7 -> {  // Log out
+                out.println("Logging out...\n");
+                currentAccount = null;
+                showMainMenu();
+            }
+            default -> {
+                out.println("Invalid option. Please try again.");
+                showAccountMenu();
+            }
+        }
+    }
+
+    private void ask(State question, String prompt) {
+        state = question;
+        out.print(prompt);
+    }
+
+    private void showMainMenu() {
+        state = State.MAIN_MENU;
+        showMenu();
+    }
+
+    private void showAccountMenu() {
+        state = State.ACCOUNT_MENU;
+        showMenu();
+    }
+
+    // During a cooldown the menu waits until input is accepted again
+    private void showMenu() {
+        if (invalidInputs.isBlocked(sessionId)) {
+            menuDue = true;
+        } else {
+            printMenu();
+        }
+    }
+
+    private void printMenu() {
+        if (state == State.MAIN_MENU) {
+            out.println("**********************************");
+            out.println("   Please select an option:");
+            out.println("   1. Create a new account");
+            out.println("   2. Access existing account");
+            out.println("   3. Exit");
+            out.println("**********************************");
+        } else {
+            out.println("**********************************");
+            out.println("     Please select an option:");
+            out.println("     1. Check balance");
+            out.println("     2. Deposit");
+            out.println("     3. Withdraw");
+            out.println("     4. Transfer");
+            out.println("     5. Change passcode");
+            out.println("     6. Mini statement");
+            out.println("     7. Logout");
+            out.println("**********************************");
+        }
+    }
+
+    // The number, or null after telling the user and going back to the menu
+    private Integer parseInt(String word, String complaint) {
+        try {
+            return Integer.parseInt(word);
+        } catch (NumberFormatException e) {
+            rejectInput(complaint);
+            return null;
+        }
+    }
+
+    // The amount in cents, or null after telling the user and going back to the menu
+    private Long parseAmount(String word) {
+        try {
+            return Money.parse(word);
+        } catch (NumberFormatException e) {
+            rejectInput("Invalid input. Please enter valid numeric values.");
+            return null;
+        }
+    }
+
+    // Counts an invalid input, warns when the session has had too many, and goes back to the menu
+    private void rejectInput(String complaint) {
+        out.println(complaint);
+        if (invalidInputs.recordFailure(sessionId)) {
+            long waitMillis = invalidInputs.retryAfterMillis(sessionId);
+            out.println("Too many invalid inputs. Please wait " + seconds(waitMillis) + " seconds before trying again.\n");
+        }
+        if (currentAccount != null) {
+            showAccountMenu();
+        } else {
+            showMainMenu();
+        }
+    }
+
+    private static long seconds(long millis) {
+        return (millis + 999) / 1000;
+    }
+}
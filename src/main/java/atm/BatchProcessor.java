@@ -0,0 +1,589 @@
+package atm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Applies a file of transactions to the ledger without any menu or console output.
+// One line per transaction:
+//   deposit,<account>,<amount>
+//   withdraw,<account>,<amount>
+//   transfer,<sender>,<recipient>,<amount>
+// Blank lines and lines starting with '#' are skipped. Amounts are in dollars with up to two decimals.
+//
+// A reader thread parses the file straight from a byte buffer and deals the transactions out to worker threads
+// by the account they take money from (the depositing account for deposits). Each worker applies its transactions
+// in file order, and accounts on different workers run in parallel.
+//
+// A transfer also touches the recipient, which may belong to another worker. To give every account the same
+// sequence of changes as running the file line by line, the reader remembers which worker last touched each
+// account and at which line. A transaction whose account was last touched by another worker waits until that
+// worker has applied past that line, so a credit lands after the recipient's earlier lines and before its later
+// ones. The outcome therefore does not depend on the number of workers or on timing. Waiting never deadlocks: a
+// transaction only waits for earlier lines, and the reader hands the chunk holding such a line to its worker
+// no later than anything that waits for it.
+public class BatchProcessor {
+    static final byte DEPOSIT = 1;
+    static final byte WITHDRAW = 2;
+    static final byte TRANSFER = 3;
+    static final byte MALFORMED = 4; // Line could not be parsed; reported as rejected without touching the ledger
+
+    private static final int CHUNK_SIZE = 4096; // Transactions handed to a worker at a time
+    private static final int CHUNKS_PER_WORKER = 8;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    private static final int MALFORMED_CODE = TransactionResult.values().length; // Report code next to the results
+    private static final int WORKER_BITS = 16; // A line to wait for is packed as line << WORKER_BITS | worker
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+
+    // Summary of a batch run
+    public static final class Summary {
+        public final long processed;
+        public final long succeeded;
+        public final long rejected;
+        public final long elapsedNanos;
+
+        Summary(long processed, long succeeded, long rejected, long elapsedNanos) {
+            this.processed = processed;
+            this.succeeded = succeeded;
+            this.rejected = rejected;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long perSecond() {
+            return elapsedNanos == 0 ? 0 : processed * 1_000_000_000L / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Processed " + processed + " transactions in " + elapsedNanos / 1_000_000 + " ms (" + perSecond()
+                    + " per second): " + succeeded + " succeeded, " + rejected + " rejected.";
+        }
+    }
+
+    // A block of parsed transactions, stored column by column so it can be reused without allocating
+    private static final class Chunk {
+        final byte[] types = new byte[CHUNK_SIZE];
+        final int[] accounts = new int[CHUNK_SIZE];
+        final int[] recipients = new int[CHUNK_SIZE];
+        final long[] amounts = new long[CHUNK_SIZE];
+        final long[] lines = new long[CHUNK_SIZE];
+        final long[] waitFirst = new long[CHUNK_SIZE]; // Line of another worker to wait for (packed), or 0
+        final long[] waitSecond = new long[CHUNK_SIZE]; // A transfer can depend on two other workers
+        int size;
+        // Chunks still being filled for other workers that hold lines this one waits for; handed over before it
+        Chunk[] dependencies = new Chunk[4];
+        int[] dependencyWorkers = new int[4];
+        int dependencyCount;
+
+        void dependsOn(int worker, Chunk chunk) {
+            for (int i = 0; i < dependencyCount; i++) {
+                if (dependencies[i] == chunk) {
+                    return;
+                }
+            }
+            if (dependencyCount == dependencies.length) {
+                dependencies = Arrays.copyOf(dependencies, dependencyCount * 2);
+                dependencyWorkers = Arrays.copyOf(dependencyWorkers, dependencyCount * 2);
+            }
+            dependencies[dependencyCount] = chunk;
+            dependencyWorkers[dependencyCount++] = worker;
+        }
+    }
+
+    private static final Chunk END = new Chunk(); // Tells a worker that the input is finished
+
+    private final Ledger ledger;
+    private final int workerCount;
+
+    public BatchProcessor(Ledger ledger, int workerCount) {
+        if (workerCount <= 0 || workerCount > MAX_WORKERS) {
+            throw new IllegalArgumentException("Worker count must be between 1 and " + MAX_WORKERS + ": " + workerCount);
+        }
+        this.ledger = ledger;
+        this.workerCount = workerCount;
+    }
+
+    // Runs every transaction in the input and writes the rejected ones, sorted by line number, to the report
+    public Summary run(Path input, Path report) throws IOException {
+        long start = System.nanoTime();
+        Worker[] workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(workers);
+        }
+        for (int i = 0; i < workerCount; i++) {
+            workers[i].thread = new Thread(workers[i], "batch-worker-" + i);
+            workers[i].thread.start();
+        }
+        try {
+            read(input, workers);
+        } finally {
+            for (Worker worker : workers) {
+                worker.pending.add(END);
+            }
+            for (Worker worker : workers) {
+                try {
+                    worker.thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for batch workers", e);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long processed = 0;
+        long succeeded = 0;
+        long[] counts = new long[MALFORMED_CODE + 1];
+        int rejectedTotal = 0;
+        for (Worker worker : workers) {
+            if (worker.failure != null) {
+                throw new IllegalStateException("Batch worker failed", worker.failure);
+            }
+            processed += worker.processed;
+            succeeded += worker.processed - worker.rejectedCount;
+            rejectedTotal += worker.rejectedCount;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += worker.reasonCounts[i];
+            }
+        }
+        Summary summary = new Summary(processed, succeeded, processed - succeeded, elapsed);
+        writeReport(report, summary, counts, workers, rejectedTotal);
+        return summary;
+    }
+
+    private void read(Path input, Worker[] workers) throws IOException {
+        Chunk[] filling = new Chunk[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            filling[i] = workers[i].take();
+        }
+        AsciiSequence text = new AsciiSequence();
+        LastTouches touches = new LastTouches();
+        byte[] bytes = new byte[READ_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long lineNumber = 0;
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            boolean endOfFile = false;
+            while (!endOfFile) {
+                endOfFile = channel.read(buffer) < 0;
+                int limit = buffer.position();
+                int lineStart = 0;
+                while (true) {
+                    int lineEnd = indexOf(bytes, (byte) '\n', lineStart, limit);
+                    if (lineEnd < 0) {
+                        if (!endOfFile || lineStart == limit) {
+                            break; // Keep the partial line for the next read
+                        }
+                        lineEnd = limit; // Last line without a newline
+                    }
+                    lineNumber++;
+                    int end = lineEnd > lineStart && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+                    if (end > lineStart && bytes[lineStart] != '#') {
+                        parseLine(bytes, lineStart, end, lineNumber, text, touches, filling, workers);
+                    }
+                    lineStart = Math.min(lineEnd + 1, limit);
+                    if (lineEnd == limit) {
+                        break;
+                    }
+                }
+                if (lineStart == 0 && limit == bytes.length) {
+                    throw new IOException("Line " + (lineNumber + 1) + " is longer than " + bytes.length + " bytes");
+                }
+                System.arraycopy(bytes, lineStart, bytes, 0, limit - lineStart);
+                buffer.position(limit - lineStart);
+            }
+        }
+        for (int i = 0; i < workers.length; i++) {
+            if (filling[i].size > 0) {
+                workers[i].pending.add(filling[i]);
+            } else {
+                workers[i].free.add(filling[i]);
+            }
+        }
+    }
+
+    // Parses one line into the chunk of the worker that owns its debited account
+    private void parseLine(byte[] bytes, int start, int end, long lineNumber, AsciiSequence text, LastTouches touches,
+                           Chunk[] filling, Worker[] workers) {
+        byte type = MALFORMED;
+        int account = 0;
+        int recipient = 0;
+        long amount = 0;
+        int comma = indexOf(bytes, (byte) ',', start, end);
+        if (comma > 0) {
+            type = operation(bytes, start, comma);
+        }
+        try {
+            if (type != MALFORMED) {
+                int field = comma + 1;
+                int next = indexOf(bytes, (byte) ',', field, end);
+                account = parseInt(bytes, field, next);
+                if (type == TRANSFER) {
+                    field = next + 1;
+                    next = indexOf(bytes, (byte) ',', field, end);
+                    recipient = parseInt(bytes, field, next);
+                }
+                field = next + 1;
+                if (indexOf(bytes, (byte) ',', field, end) >= 0) {
+                    type = MALFORMED; // Too many fields
+                } else {
+                    amount = Money.parse(text.wrap(bytes, field, end));
+                }
+            }
+        } catch (NumberFormatException e) {
+            type = MALFORMED;
+        }
+        int owner = type == MALFORMED ? 0 : Math.floorMod(AccountRegistry.mix(account), workers.length);
+        long waitFirst = 0;
+        long waitSecond = 0;
+        if (type != MALFORMED) {
+            long touch = (lineNumber << WORKER_BITS) | owner;
+            waitFirst = dependency(touches.replace(account, touch), owner, filling);
+            if (type == TRANSFER && recipient != account) {
+                waitSecond = dependency(touches.replace(recipient, touch), owner, filling);
+            }
+        }
+        Chunk chunk = filling[owner];
+        int i = chunk.size++;
+        chunk.types[i] = type;
+        chunk.accounts[i] = account;
+        chunk.recipients[i] = recipient;
+        chunk.amounts[i] = amount;
+        chunk.lines[i] = lineNumber;
+        chunk.waitFirst[i] = waitFirst;
+        chunk.waitSecond[i] = waitSecond;
+        if (chunk.size == CHUNK_SIZE) {
+            handOver(owner, filling, workers);
+            for (int w = 0; w < filling.length; w++) {
+                if (filling[w] == null) {
+                    filling[w] = workers[w].take();
+                }
+            }
+        }
+    }
+
+    // What a transaction for `owner` must wait for, given the account's previous touch: nothing if there was none
+    // or it was on the same worker (which applies its lines in order), otherwise that line on the other worker.
+    // If the line is still in the chunk being filled for that worker, that chunk must reach its worker first.
+    private static long dependency(long previous, int owner, Chunk[] filling) {
+        int worker = (int) (previous & (MAX_WORKERS - 1));
+        if (previous == 0 || worker == owner) {
+            return 0;
+        }
+        Chunk chunk = filling[worker];
+        if (chunk.size > 0 && previous >>> WORKER_BITS >= chunk.lines[0]) {
+            filling[owner].dependsOn(worker, chunk);
+        }
+        return previous;
+    }
+
+    // Hands the worker its chunk, after the chunks of other workers it depends on (and theirs, and so on), so
+    // every line a worker may wait for has been handed out. Leaves null where a new chunk is needed; the caller
+    // takes those only after everything is handed over, as taking may wait for a worker to finish a chunk.
+    private static void handOver(int worker, Chunk[] filling, Worker[] workers) {
+        Chunk chunk = filling[worker];
+        filling[worker] = null;
+        for (int i = 0; i < chunk.dependencyCount; i++) {
+            int other = chunk.dependencyWorkers[i];
+            if (filling[other] == chunk.dependencies[i]) { // Not handed over since
+                handOver(other, filling, workers);
+            }
+        }
+        workers[worker].pending.add(chunk);
+    }
+
+    // Applies the transactions of its accounts and remembers which ones were rejected
+    private final class Worker implements Runnable {
+        final BlockingQueue<Chunk> pending = new ArrayBlockingQueue<>(CHUNKS_PER_WORKER + 1);
+        final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(CHUNKS_PER_WORKER);
+        final long[] reasonCounts = new long[MALFORMED_CODE + 1];
+        final AtomicLong appliedThrough = new AtomicLong(); // Line of the last transaction this worker applied
+        final Worker[] peers;
+        long[] rejected = new long[1024]; // Line number shifted left by 8, reason code in the low byte
+        int rejectedCount;
+        long processed;
+        Thread thread;
+        volatile Throwable failure;
+
+        Worker(Worker[] peers) {
+            this.peers = peers;
+            for (int i = 0; i < CHUNKS_PER_WORKER; i++) {
+                free.add(new Chunk());
+            }
+        }
+
+        // Called by the reader: an empty chunk to fill, waiting while the worker is behind
+        Chunk take() {
+            try {
+                Chunk chunk = free.take();
+                chunk.size = 0;
+                Arrays.fill(chunk.dependencies, 0, chunk.dependencyCount, null);
+                chunk.dependencyCount = 0;
+                return chunk;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading the batch", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Chunk chunk = pending.take();
+                    if (chunk == END) {
+                        return;
+                    }
+                    for (int i = 0; i < chunk.size; i++) {
+                        awaitApplied(chunk.waitFirst[i]);
+                        awaitApplied(chunk.waitSecond[i]);
+                        int code = apply(chunk.types[i], chunk.accounts[i], chunk.recipients[i], chunk.amounts[i]);
+                        if (code != TransactionResult.SUCCESS.ordinal()) {
+                            reject(chunk.lines[i], code);
+                        }
+                        appliedThrough.lazySet(chunk.lines[i]);
+                    }
+                    processed += chunk.size;
+                    free.add(chunk);
+                }
+            } catch (Throwable e) {
+                failure = e;
+                appliedThrough.set(Long.MAX_VALUE); // Nobody waits on this worker any more; the run fails anyway
+                // Keep handing chunks back so the reader does not wait forever on this worker
+                while (true) {
+                    try {
+                        Chunk chunk = pending.take();
+                        if (chunk == END) {
+                            return;
+                        }
+                        free.add(chunk);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Waits until another worker has applied the given line (packed with its worker index); 0 waits for nothing.
+        // Spins briefly, since the line is usually moments away, then yields and finally sleeps so a single CPU
+        // still gets to the other worker.
+        private void awaitApplied(long packed) {
+            if (packed == 0) {
+                return;
+            }
+            AtomicLong progress = peers[(int) (packed & (MAX_WORKERS - 1))].appliedThrough;
+            long line = packed >>> WORKER_BITS;
+            for (int spins = 0; progress.get() < line; spins++) {
+                if (spins < 64) {
+                    Thread.onSpinWait();
+                } else if (spins < 128) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(10_000);
+                }
+            }
+        }
+
+        private void reject(long line, int code) {
+            if (rejectedCount == rejected.length) {
+                rejected = Arrays.copyOf(rejected, rejectedCount * 2);
+            }
+            rejected[rejectedCount++] = line << 8 | code;
+            reasonCounts[code]++;
+        }
+    }
+
+    // Runs one transaction through the silent ledger API and returns the result code for the report
+    private int apply(byte type, int accountNumber, int recipientNumber, long amount) {
+        if (type == MALFORMED) {
+            return MALFORMED_CODE;
+        }
+        ATMSimulator account = ledger.find(accountNumber);
+        if (account == null) {
+            return TransactionResult.UNKNOWN_ACCOUNT.ordinal();
+        }
+        TransactionResult result = switch (type) {
+            case DEPOSIT -> ledger.deposit(account, amount);
+            case WITHDRAW -> ledger.withdraw(account, amount);
+            default -> ledger.transfer(account, ledger.find(recipientNumber), amount);
+        };
+        return result.ordinal();
+    }
+
+    private static void writeReport(Path report, Summary summary, long[] counts, Worker[] workers, int rejectedTotal)
+            throws IOException {
+        long[] rejected = new long[rejectedTotal];
+        int offset = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.rejected, 0, rejected, offset, worker.rejectedCount);
+            offset += worker.rejectedCount;
+        }
+        Arrays.sort(rejected); // Line number is in the high bits, so this sorts by line
+        TransactionResult[] results = TransactionResult.values();
+        try (BufferedWriter out = Files.newBufferedWriter(report, StandardCharsets.US_ASCII)) {
+            out.write("# " + summary);
+            out.newLine();
+            for (int code = 0; code < counts.length; code++) {
+                if (counts[code] > 0 && code != TransactionResult.SUCCESS.ordinal()) {
+                    out.write("# " + reasonName(code, results) + ": " + counts[code]);
+                    out.newLine();
+                }
+            }
+            out.write("# line,reason");
+            out.newLine();
+            StringBuilder line = new StringBuilder(32);
+            for (long entry : rejected) {
+                line.setLength(0);
+                line.append(entry >>> 8).append(',').append(reasonName((int) (entry & 0xFF), results));
+                out.append(line);
+                out.newLine();
+            }
+        }
+    }
+
+    private static String reasonName(int code, TransactionResult[] results) {
+        return code == MALFORMED_CODE ? "MALFORMED" : results[code].name();
+    }
+
+    private static byte operation(byte[] bytes, int start, int end) {
+        if (matches(bytes, start, end, "deposit")) {
+            return DEPOSIT;
+        }
+        if (matches(bytes, start, end, "withdraw")) {
+            return WITHDRAW;
+        }
+        if (matches(bytes, start, end, "transfer")) {
+            return TRANSFER;
+        }
+        return MALFORMED;
+    }
+
+    private static boolean matches(byte[] bytes, int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if ((bytes[start + i] | 0x20) != word.charAt(i)) { // Lower-case the letter, so DEPOSIT also matches
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parses a decimal int between start and end (end of -1 means the field is missing)
+    private static int parseInt(byte[] bytes, int start, int end) {
+        if (end < 0 || start >= end || end - start > 11) {
+            throw new NumberFormatException("Bad account number");
+        }
+        boolean negative = bytes[start] == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Bad account number");
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE || (negative && end - start == 1)) {
+            throw new NumberFormatException("Bad account number");
+        }
+        return (int) value;
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The reader's record of the last line that touched each account, packed as line << WORKER_BITS | worker.
+    // Open addressing on the account number, with each key next to its value so a lookup touches one cache line.
+    // A value of 0 marks a free slot, as line numbers start at 1.
+    private static final class LastTouches {
+        private long[] slots = new long[2 << 16]; // Account number, then its last touch
+        private int size;
+
+        // Records the touch and returns the previous one for the account, or 0
+        long replace(int account, long touch) {
+            int mask = (slots.length >> 1) - 1;
+            for (int i = AccountRegistry.mix(account) & mask; ; i = (i + 1) & mask) {
+                long previous = slots[2 * i + 1];
+                if (previous == 0) {
+                    slots[2 * i] = account;
+                    slots[2 * i + 1] = touch;
+                    if (++size > mask / 2) {
+                        grow();
+                    }
+                    return 0;
+                }
+                if ((int) slots[2 * i] == account) {
+                    slots[2 * i + 1] = touch;
+                    return previous;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            int mask = (slots.length >> 1) - 1;
+            for (int j = 0; j < old.length; j += 2) {
+                if (old[j + 1] != 0) {
+                    int i = AccountRegistry.mix((int) old[j]) & mask;
+                    while (slots[2 * i + 1] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    slots[2 * i] = old[j];
+                    slots[2 * i + 1] = old[j + 1];
+                }
+            }
+        }
+    }
+
+    // Reusable view of ASCII bytes as characters, so amounts are parsed without creating Strings
+    private static final class AsciiSequence implements CharSequence {
+        private byte[] bytes;
+        private int start;
+        private int end;
+
+        AsciiSequence wrap(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[start + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new String(bytes, start + from, to - from, StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+        }
+    }
+}
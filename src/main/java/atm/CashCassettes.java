@@ -0,0 +1,182 @@
+package atm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The notes in one ATM, one cassette per denomination.
+// A withdrawal reserves its notes before the account is debited, then either takes them (commit) or puts them back
+// (release). Choosing and reserving the notes is one step under the machine's monitor, so concurrent withdrawals on
+// the same machine never promise the same notes, and a withdrawal is never debited for cash the machine lacks.
+public class CashCassettes {
+    public static final String DEFAULT_LOADOUT = "100x500,50x500,20x2000,10x1000,5x500";
+    public static final long MAX_WITHDRAWAL = 1000 * Money.CENTS_PER_DOLLAR; // Per transaction
+    public static final int MAX_NOTES = 40; // Most notes the dispenser hands out at once
+
+    // Denominations and the number of notes loaded of each, e.g. "100x500,20x2000" for 500 $100 and 2000 $20 notes
+    public static final class Loadout {
+        final long[] denominations; // Cents, largest first
+        final int[] counts;
+
+        private Loadout(long[] denominations, int[] counts) {
+            this.denominations = denominations;
+            this.counts = counts;
+        }
+
+        public static Loadout parse(String text) {
+            String[] cassettes = text.split(",");
+            long[][] parsed = new long[cassettes.length][];
+            for (int i = 0; i < cassettes.length; i++) {
+                String[] fields = cassettes[i].trim().split("x");
+                if (fields.length != 2) {
+                    throw new IllegalArgumentException("Expected <dollars>x<notes> but got \"" + cassettes[i] + "\"");
+                }
+                long denomination = Money.parse(fields[0]);
+                int count = Integer.parseInt(fields[1]);
+                if (denomination <= 0 || count < 0) {
+                    throw new IllegalArgumentException("Invalid cassette \"" + cassettes[i] + "\"");
+                }
+                parsed[i] = new long[] {denomination, count};
+            }
+            Arrays.sort(parsed, (a, b) -> Long.compare(b[0], a[0]));
+            long[] denominations = new long[parsed.length];
+            int[] counts = new int[parsed.length];
+            for (int i = 0; i < parsed.length; i++) {
+                denominations[i] = parsed[i][0];
+                counts[i] = (int) parsed[i][1];
+            }
+            return new Loadout(denominations, counts);
+        }
+
+        // The dispensing table for these denominations; build it once and share it between the machines
+        public DispensePlanner planner() {
+            return new DispensePlanner(denominations, MAX_WITHDRAWAL, MAX_NOTES);
+        }
+    }
+
+    // Notes set aside for one withdrawal
+    public final class Dispense {
+        private final int[] notes;
+        private boolean settled = false; // Guarded by the machine
+
+        private Dispense(int[] notes) {
+            this.notes = notes;
+        }
+
+        // The notes leave the machine
+        public void commit() {
+            synchronized (CashCassettes.this) {
+                settle();
+                for (int i = 0; i < notes.length; i++) {
+                    loaded[i] -= notes[i];
+                }
+            }
+        }
+
+        // The withdrawal did not go through; the notes can be promised to another one
+        public void release() {
+            synchronized (CashCassettes.this) {
+                settle();
+                for (int i = 0; i < notes.length; i++) {
+                    available[i] += notes[i];
+                }
+            }
+        }
+
+        public int notes(int denominationIndex) {
+            return notes[denominationIndex];
+        }
+
+        // "2 x $50, 1 x $20"
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < notes.length; i++) {
+                if (notes[i] > 0) {
+                    if (text.length() > 0) {
+                        text.append(", ");
+                    }
+                    text.append(notes[i]).append(" x $").append(dollars(planner.denomination(i)));
+                }
+            }
+            return text.toString();
+        }
+
+        private void settle() {
+            if (settled) {
+                throw new IllegalStateException("Notes were already handed out or put back");
+            }
+            settled = true;
+        }
+    }
+
+    private final String id;
+    private final DispensePlanner planner;
+    private final int[] capacity;
+    private final int[] available; // In the cassettes and not promised to a withdrawal; guarded by this
+    private final int[] loaded; // In the cassettes, promised or not; guarded by this
+
+    public CashCassettes(String id, DispensePlanner planner, Loadout loadout) {
+        if (planner.denominationCount() != loadout.denominations.length) {
+            throw new IllegalArgumentException("Planner and loadout have different denominations");
+        }
+        for (int i = 0; i < loadout.denominations.length; i++) {
+            if (planner.denomination(i) != loadout.denominations[i]) {
+                throw new IllegalArgumentException("Planner and loadout have different denominations");
+            }
+        }
+        this.id = id;
+        this.planner = planner;
+        this.capacity = loadout.counts.clone();
+        this.available = loadout.counts.clone();
+        this.loaded = loadout.counts.clone();
+    }
+
+    // Machines "ATM-1" to "ATM-<count>", each loaded the same way
+    public static List<CashCassettes> fleet(Loadout loadout, int count) {
+        DispensePlanner planner = loadout.planner();
+        List<CashCassettes> machines = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            machines.add(new CashCassettes("ATM-" + i, planner, loadout));
+        }
+        return machines;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public DispensePlanner planner() {
+        return planner;
+    }
+
+    // Sets aside notes for the amount, or returns null if the machine cannot make it from what is left
+    public synchronized Dispense reserve(long amount) {
+        int[] notes = planner.plan(amount, available, capacity);
+        if (notes == null) {
+            return null;
+        }
+        for (int i = 0; i < notes.length; i++) {
+            available[i] -= notes[i];
+        }
+        return new Dispense(notes);
+    }
+
+    // Notes of one denomination still in the machine (promised ones included)
+    public synchronized int loaded(int denominationIndex) {
+        return loaded[denominationIndex];
+    }
+
+    public synchronized long cash() {
+        long total = 0;
+        for (int i = 0; i < loaded.length; i++) {
+            total += loaded[i] * planner.denomination(i);
+        }
+        return total;
+    }
+
+    // "$20" rather than "$20.00" for whole-dollar notes
+    static String dollars(long cents) {
+        return cents % Money.CENTS_PER_DOLLAR == 0 ? Long.toString(cents / Money.CENTS_PER_DOLLAR) : Money.format(cents);
+    }
+}
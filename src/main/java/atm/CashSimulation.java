@@ -0,0 +1,135 @@
+package atm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Replays a day of withdrawals against the cash in each ATM, to see which machines run out and when.
+// One line per withdrawal: <time>,<atm>,<amount>, e.g. "09:14:05,ATM-3,120". Lines need not be in time order.
+// Blank lines and lines starting with '#' are skipped. Every machine named in the file starts with the same loadout.
+// Only the cash is simulated; no account is touched.
+public class CashSimulation {
+    // What happened to one machine over the day
+    public static final class MachineReport {
+        public final CashCassettes machine;
+        long withdrawals;
+        long dispensed; // Cents
+        long declined;
+        LocalTime firstDeclined; // Null if every withdrawal was paid
+        long firstDeclinedAmount;
+        final LocalTime[] emptied; // Per denomination: when its cassette ran out, or null
+
+        MachineReport(CashCassettes machine) {
+            this.machine = machine;
+            this.emptied = new LocalTime[machine.planner().denominationCount()];
+        }
+
+        @Override
+        public String toString() {
+            DispensePlanner planner = machine.planner();
+            StringBuilder text = new StringBuilder();
+            text.append(machine.id()).append(": ").append(withdrawals).append(" withdrawals paid ($")
+                    .append(Money.format(dispensed)).append("), ").append(declined).append(" declined.");
+            if (firstDeclined != null) {
+                text.append(" First declined at ").append(firstDeclined).append(" ($").append(Money.format(firstDeclinedAmount)).append(").");
+            }
+            for (int i = 0; i < emptied.length; i++) {
+                if (emptied[i] != null) {
+                    text.append(" Out of $").append(CashCassettes.dollars(planner.denomination(i))).append(" notes at ").append(emptied[i]).append('.');
+                }
+            }
+            text.append(" Left:");
+            for (int i = 0; i < emptied.length; i++) {
+                text.append(i == 0 ? " " : ", ").append(machine.loaded(i)).append(" x $").append(CashCassettes.dollars(planner.denomination(i)));
+            }
+            return text.append(" ($").append(Money.format(machine.cash())).append(')').toString();
+        }
+    }
+
+    private static final class Withdrawal {
+        final LocalTime time;
+        final String atm;
+        final long amount;
+
+        Withdrawal(LocalTime time, String atm, long amount) {
+            this.time = time;
+            this.atm = atm;
+            this.amount = amount;
+        }
+    }
+
+    private final CashCassettes.Loadout loadout;
+    private final DispensePlanner planner;
+    private long planningNanos;
+    private long plans;
+
+    public CashSimulation(CashCassettes.Loadout loadout) {
+        this.loadout = loadout;
+        this.planner = loadout.planner();
+    }
+
+    // Replays the file and returns one report per machine, in the order the machines first appear
+    public List<MachineReport> run(Path input) throws IOException {
+        List<Withdrawal> withdrawals = read(input);
+        withdrawals.sort(Comparator.comparing(withdrawal -> withdrawal.time)); // Stable, so equal times keep their file order
+        Map<String, MachineReport> reports = new LinkedHashMap<>();
+        for (Withdrawal withdrawal : withdrawals) {
+            MachineReport report = reports.computeIfAbsent(withdrawal.atm,
+                    id -> new MachineReport(new CashCassettes(id, planner, loadout)));
+            long start = System.nanoTime();
+            CashCassettes.Dispense notes = report.machine.reserve(withdrawal.amount);
+            planningNanos += System.nanoTime() - start;
+            plans++;
+            if (notes == null) {
+                report.declined++;
+                if (report.firstDeclined == null) {
+                    report.firstDeclined = withdrawal.time;
+                    report.firstDeclinedAmount = withdrawal.amount;
+                }
+                continue;
+            }
+            notes.commit();
+            report.withdrawals++;
+            report.dispensed += withdrawal.amount;
+            for (int i = 0; i < report.emptied.length; i++) {
+                if (report.emptied[i] == null && report.machine.loaded(i) == 0 && notes.notes(i) > 0) {
+                    report.emptied[i] = withdrawal.time;
+                }
+            }
+        }
+        return new ArrayList<>(reports.values());
+    }
+
+    // Average time to choose and reserve the notes for one withdrawal
+    public long meanPlanningNanos() {
+        return plans == 0 ? 0 : planningNanos / plans;
+    }
+
+    private static List<Withdrawal> read(Path input) throws IOException {
+        List<Withdrawal> withdrawals = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(input)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            try {
+                if (fields.length != 3) {
+                    throw new IllegalArgumentException("expected <time>,<atm>,<amount>");
+                }
+                withdrawals.add(new Withdrawal(LocalTime.parse(fields[0].trim()), fields[1].trim(), Money.parse(fields[2].trim())));
+            } catch (RuntimeException e) {
+                throw new IOException("Line " + lineNumber + " of " + input + " is not a withdrawal: " + e.getMessage(), e);
+            }
+        }
+        return withdrawals;
+    }
+}
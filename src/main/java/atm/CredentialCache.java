@@ -0,0 +1,95 @@
+package atm;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Remembers which passcodes were verified recently, so a burst of logins to the same account pays for the
+// slow passcode hash only once. Bounded: a fixed-size table in which a new entry replaces an expired or older one.
+// Entries expire after a fixed time, and an entry only counts for the exact PasscodeHash it was verified against,
+// so changing the passcode invalidates it at once.
+//
+// The passcode itself is not stored: entries hold a 64-bit fingerprint keyed with a secret chosen at startup.
+public class CredentialCache {
+    private static final int MAX_PROBES = 4; // Slots searched per account
+
+    private static final class Entry {
+        final int accountNumber;
+        final PasscodeHash hash;
+        final long fingerprint;
+        final long expiresAtNanos;
+
+        Entry(int accountNumber, PasscodeHash hash, long fingerprint, long expiresAtNanos) {
+            this.accountNumber = accountNumber;
+            this.hash = hash;
+            this.fingerprint = fingerprint;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+    private final long ttlNanos;
+    private final long secret = new SecureRandom().nextLong();
+
+    public CredentialCache(int capacity, long timeToLive, TimeUnit unit) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a positive power of two: " + capacity);
+        }
+        this.table = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.ttlNanos = unit.toNanos(timeToLive);
+    }
+
+    // True if this passcode was verified against this hash within the time to live
+    public boolean contains(int accountNumber, PasscodeHash hash, int passcode) {
+        long now = System.nanoTime();
+        long fingerprint = fingerprint(accountNumber, passcode);
+        int start = AccountRegistry.mix(accountNumber) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            Entry entry = table.get((start + probe) & mask);
+            if (entry != null && entry.accountNumber == accountNumber) {
+                return entry.hash == hash && entry.fingerprint == fingerprint && now - entry.expiresAtNanos < 0;
+            }
+        }
+        return false;
+    }
+
+    // Records a successful verification, replacing the account's old entry, an expired one or the one expiring first
+    public void add(int accountNumber, PasscodeHash hash, int passcode) {
+        long now = System.nanoTime();
+        Entry added = new Entry(accountNumber, hash, fingerprint(accountNumber, passcode), now + ttlNanos);
+        int start = AccountRegistry.mix(accountNumber) & mask;
+        int victim = start;
+        long victimExpiry = Long.MAX_VALUE;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int i = (start + probe) & mask;
+            Entry entry = table.get(i);
+            if (entry == null || entry.accountNumber == accountNumber) {
+                victim = i;
+                break;
+            }
+            long expiry = entry.expiresAtNanos - now; // Negative once expired, so expired entries go first
+            if (expiry < victimExpiry) {
+                victim = i;
+                victimExpiry = expiry;
+            }
+        }
+        table.set(victim, added); // A racing add may win instead; either way one valid entry is left
+    }
+
+    // Keyed 64-bit mix (the murmur3 finalizer, twice) of the account and passcode
+    private long fingerprint(int accountNumber, int passcode) {
+        long x = ((long) accountNumber << 32 | (passcode & 0xFFFFFFFFL)) ^ secret;
+        x = fmix(x);
+        return fmix(x ^ Long.rotateLeft(secret, 29));
+    }
+
+    private static long fmix(long x) {
+        x ^= x >>> 33;
+        x *= 0xFF51AFD7ED558CCDL;
+        x ^= x >>> 33;
+        x *= 0xC4CEB9FE1A85EC53L;
+        return x ^ (x >>> 33);
+    }
+}
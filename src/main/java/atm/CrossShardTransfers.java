@@ -0,0 +1,441 @@
+package atm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+// Moves money between accounts on different shards, so that a crash or a lost connection at any point
+// neither loses nor duplicates a transfer.
+//
+// The sender's shard coordinates (a saga with one compensating step):
+//   1. It debits the sender and journals the transfer with the next sequence number for the recipient's shard.
+//   2. An outbox thread per destination sends the oldest pending transfers, in order, as one batch of up to 64,
+//      after fsyncing the journal so no transfer can arrive before its debit is durable.
+//   3. The recipient's shard credits each transfer (or refuses it: unknown account, overflow), journals the outcome,
+//      fsyncs and answers with a bitmask of the refused ones.
+//   4. The sender's shard journals each outcome and pays refused transfers back to the sender.
+// Only one batch per pair of shards is unanswered at a time and it is resent unchanged (possibly with more transfers
+// appended) until it is answered. The recipient's shard remembers, per sender shard, the first sequence number of
+// the last batch, how far it has applied it and which transfers it refused, so a resent batch gets the same
+// answer without being applied twice.
+//
+// All of this state is rebuilt from the journal. A snapshot deletes old journal segments, so the ledger calls
+// checkpoint() right after rotating, which writes the state again at the start of the new segment.
+public class CrossShardTransfers implements Closeable {
+    static final int MAX_BATCH = 64; // Outcomes of a batch fit in one long
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 5000;
+    private static final int TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_IDLE_QUERY_CONNECTIONS = 4; // Per other shard
+
+    // A transfer that has left the sender's account but is not yet acknowledged by the recipient's shard
+    static final class Pending {
+        final long sequence;
+        final int senderNumber;
+        final int recipientNumber;
+        final long amount;
+
+        Pending(long sequence, int senderNumber, int recipientNumber, long amount) {
+            this.sequence = sequence;
+            this.senderNumber = senderNumber;
+            this.recipientNumber = recipientNumber;
+            this.amount = amount;
+        }
+    }
+
+    // Transfers to one other shard. Guarded by its own monitor; the ledger takes it inside its snapshot cut.
+    static final class Outbox {
+        final int shard;
+        private final TreeMap<Long, Pending> pending = new TreeMap<>(); // By sequence number, so oldest first
+        private long nextSequence = 1;
+        private int inFlight = 0; // Size of the batch sent and not yet answered
+        private boolean closed = false;
+
+        Outbox(int shard) {
+            this.shard = shard;
+        }
+
+        synchronized long nextSequence() {
+            return nextSequence++;
+        }
+
+        // Adding a transfer that is already pending changes nothing, as when a checkpoint repeats the journal before it
+        synchronized void add(Pending transfer) {
+            pending.putIfAbsent(transfer.sequence, transfer);
+            nextSequence = Math.max(nextSequence, transfer.sequence + 1);
+            notifyAll();
+        }
+
+        synchronized Pending remove(long sequence) {
+            return pending.remove(sequence);
+        }
+
+        synchronized long pendingAmount() {
+            long total = 0;
+            for (Pending transfer : pending.values()) {
+                total += transfer.amount;
+            }
+            return total;
+        }
+
+        // Waits for pending transfers and returns the batch to send next: the unanswered one again if there is one
+        synchronized List<Pending> awaitBatch() throws InterruptedException {
+            while (pending.isEmpty() && !closed) {
+                wait();
+            }
+            if (closed) {
+                return null;
+            }
+            if (inFlight == 0) {
+                inFlight = Math.min(MAX_BATCH, pending.size());
+            }
+            List<Pending> batch = new ArrayList<>(inFlight);
+            for (Pending transfer : pending.values()) {
+                if (batch.size() == inFlight) {
+                    break;
+                }
+                batch.add(transfer);
+            }
+            return batch;
+        }
+
+        synchronized void answered() {
+            inFlight = 0;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    // What this shard last received from one other shard. Guarded by its own monitor.
+    static final class Inbox {
+        long batchFirst = 1; // Sequence number of the first transfer of the last batch
+        long end = 1; // Every transfer before this one has been applied or refused
+        long rejectedMask = 0; // Bit i: transfer batchFirst + i was refused
+
+        // Starts receiving a batch. It is either the next one, or the last one again (the sender did not get the answer),
+        // possibly without transfers it settled since or with more appended. The sender settles and fsyncs every answered
+        // transfer before it sends the next batch, so it never asks about one before batchFirst again.
+        void begin(long first) {
+            if (first == end) {
+                rejectedMask = 0;
+            } else if (first >= batchFirst && first < end) {
+                rejectedMask >>>= first - batchFirst;
+            } else {
+                throw new IllegalStateException("Expected transfer " + end + " but the batch starts at " + first);
+            }
+            batchFirst = first;
+        }
+
+        void received(long sequence, boolean applied) {
+            if (!applied) {
+                rejectedMask |= 1L << (sequence - batchFirst);
+            }
+            end = sequence + 1;
+        }
+    }
+
+    // Open connections to one shard for EXISTS queries, kept between queries so a transfer does not pay for a TCP
+    // handshake. A connection is used by one thread at a time; the outbox thread keeps its own, so a query never
+    // waits behind a batch.
+    private static final class QueryConnections {
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        private boolean closed;
+
+        synchronized Connection take() {
+            return idle.pollFirst();
+        }
+
+        synchronized void release(Connection connection) {
+            if (closed || idle.size() >= MAX_IDLE_QUERY_CONNECTIONS) {
+                connection.close();
+            } else {
+                idle.addFirst(connection); // The most recently used first, so the spare ones are not kept busy
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            for (Connection connection : idle) {
+                connection.close();
+            }
+            idle.clear();
+        }
+    }
+
+    private final Ledger ledger;
+    private final ShardMap map;
+    private final Outbox[] outboxes;
+    private final Inbox[] inboxes;
+    private final QueryConnections[] queryConnections;
+    private final List<Thread> senders = new ArrayList<>();
+    private ShardServer server;
+
+    CrossShardTransfers(Ledger ledger, ShardMap map) {
+        this.ledger = ledger;
+        this.map = map;
+        this.outboxes = new Outbox[map.shardCount()];
+        this.inboxes = new Inbox[map.shardCount()];
+        this.queryConnections = new QueryConnections[map.shardCount()];
+        for (int shard = 0; shard < map.shardCount(); shard++) {
+            outboxes[shard] = new Outbox(shard);
+            inboxes[shard] = new Inbox();
+            queryConnections[shard] = new QueryConnections();
+        }
+    }
+
+    public ShardMap map() {
+        return map;
+    }
+
+    Outbox outbox(int shard) {
+        return outboxes[shard];
+    }
+
+    Inbox inbox(int shard) {
+        return inboxes[shard];
+    }
+
+    // Money that has left accounts on this shard and not yet arrived on another one
+    public long pendingAmount() {
+        long total = 0;
+        for (Outbox outbox : outboxes) {
+            total += outbox.pendingAmount();
+        }
+        return total;
+    }
+
+    // Starts listening for other shards and delivering the transfers recovered from the journal.
+    // Call after the ledger has been recovered.
+    public void start() throws IOException {
+        server = new ShardServer(ledger, map);
+        for (Outbox outbox : outboxes) {
+            if (outbox.shard != map.localShard()) {
+                Thread sender = new Thread(() -> deliver(outbox), "shard-outbox-" + outbox.shard);
+                sender.setDaemon(true);
+                sender.start();
+                senders.add(sender);
+            }
+        }
+    }
+
+    // Asks the account's shard whether it exists. Accounts are never deleted, so a yes stays true.
+    // Returns null if the shard cannot be reached.
+    public Boolean exists(int accountNumber) {
+        int shard = map.shardOf(accountNumber);
+        QueryConnections connections = queryConnections[shard];
+        String request = "EXISTS " + accountNumber + "\n";
+        Connection pooled = connections.take();
+        if (pooled != null) {
+            try {
+                return query(connections, pooled, request).equals("YES");
+            } catch (IOException e) {
+                // The shard may have restarted since the connection was last used; a new one can still get through
+            }
+        }
+        try {
+            return query(connections, new Connection(map.address(shard)), request).equals("YES");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Sends one request and gives the connection back for the next query, or closes it if anything went wrong
+    private static String query(QueryConnections connections, Connection connection, String request) throws IOException {
+        String reply;
+        try {
+            reply = connection.request(request);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        connections.release(connection);
+        return reply;
+    }
+
+    // Writes the state that the journal segments about to be deleted described. Called under the ledger's snapshot cut.
+    void checkpoint(Journal journal) {
+        for (int shard = 0; shard < outboxes.length; shard++) {
+            if (shard == map.localShard()) {
+                continue;
+            }
+            Outbox outbox = outboxes[shard];
+            Inbox inbox = inboxes[shard];
+            synchronized (outbox) {
+                synchronized (inbox) {
+                    journal.appendShardPeer(shard, outbox.nextSequence, inbox.batchFirst, inbox.end, inbox.rejectedMask);
+                }
+                for (Pending transfer : outbox.pending.values()) {
+                    journal.appendShardPending(transfer.sequence, shard, transfer.senderNumber, transfer.recipientNumber, transfer.amount);
+                }
+            }
+        }
+    }
+
+    // Restores the checkpointed state of one other shard while the journal is replayed
+    void restorePeer(int shard, long nextOutgoing, long batchFirst, long incomingEnd, long rejectedMask) {
+        Outbox outbox = outboxes[shard];
+        synchronized (outbox) {
+            outbox.nextSequence = Math.max(outbox.nextSequence, nextOutgoing);
+        }
+        Inbox inbox = inboxes[shard];
+        synchronized (inbox) {
+            inbox.batchFirst = batchFirst;
+            inbox.end = incomingEnd;
+            inbox.rejectedMask = rejectedMask;
+        }
+    }
+
+    // Repeats what receiving one transfer did to the inbox, while the journal is replayed
+    void restoreCredit(int shard, long sequence, long batchFirst, boolean applied) {
+        Inbox inbox = inboxes[shard];
+        synchronized (inbox) {
+            if (batchFirst != inbox.batchFirst) {
+                inbox.begin(batchFirst);
+            }
+            inbox.received(sequence, applied);
+        }
+    }
+
+    // Stops delivering; transfers still pending stay in the journal and are sent after the next start
+    @Override
+    public void close() throws IOException {
+        for (Outbox outbox : outboxes) {
+            outbox.close();
+        }
+        for (QueryConnections connections : queryConnections) {
+            connections.close();
+        }
+        for (Thread sender : senders) {
+            sender.interrupt();
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    // Outbox thread: sends batches to one shard until closed, reconnecting with backoff whenever the shard is away
+    private void deliver(Outbox outbox) {
+        Connection connection = null;
+        long retryMillis = MIN_RETRY_MILLIS;
+        boolean reported = false;
+        try {
+            while (true) {
+                List<Pending> batch = outbox.awaitBatch();
+                if (batch == null) {
+                    return;
+                }
+                try {
+                    ledger.flushJournal(); // The debits must be durable before the money can appear on the other shard
+                    if (connection == null) {
+                        connection = new Connection(map.address(outbox.shard));
+                    }
+                    long rejectedMask = send(connection, batch);
+                    for (int i = 0; i < batch.size(); i++) {
+                        ledger.settleShardTransfer(outbox, batch.get(i), (rejectedMask >>> i & 1) != 0);
+                    }
+                    outbox.answered();
+                    retryMillis = MIN_RETRY_MILLIS;
+                    reported = false;
+                } catch (IOException e) {
+                    if (!reported) {
+                        System.out.println("Shard " + outbox.shard + " is unreachable (" + e.getMessage() + "); retrying.");
+                        reported = true;
+                    }
+                    closeQuietly(connection);
+                    connection = null;
+                    Thread.sleep(retryMillis);
+                    retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        } finally {
+            closeQuietly(connection);
+        }
+    }
+
+    // CREDIT <from shard> <first sequence> <count>, then one line per transfer: <recipient> <sender> <amount>.
+    // The answer is DONE <first sequence> <bitmask of refused transfers in hex>.
+    private long send(Connection connection, List<Pending> batch) throws IOException {
+        long first = batch.get(0).sequence;
+        StringBuilder request = new StringBuilder(32 + batch.size() * 32);
+        request.append("CREDIT ").append(map.localShard()).append(' ').append(first).append(' ').append(batch.size()).append('\n');
+        for (Pending transfer : batch) {
+            request.append(transfer.recipientNumber).append(' ').append(transfer.senderNumber).append(' ')
+                    .append(transfer.amount).append('\n');
+        }
+        String reply = connection.request(request.toString());
+        String[] fields = reply.split(" ");
+        if (fields.length != 3 || !fields[0].equals("DONE") || !fields[1].equals(Long.toString(first))) {
+            throw new IOException("unexpected answer \"" + reply + "\"");
+        }
+        return Long.parseUnsignedLong(fields[2], 16);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    // One line-based request and answer at a time over a socket to another shard
+    private static final class Connection implements Closeable {
+        private final Socket socket = new Socket();
+        private final BufferedReader in;
+        private final Writer out;
+
+        Connection(InetSocketAddress address) throws IOException {
+            try {
+                socket.connect(address, TIMEOUT_MILLIS);
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        String request(String lines) throws IOException {
+            out.write(lines);
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new IOException("connection closed");
+            }
+            if (reply.startsWith("ERROR ")) {
+                throw new IOException(reply.substring(6));
+            }
+            return reply;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package atm;
+
+import java.util.Arrays;
+
+// Chooses which notes an ATM hands out for a withdrawal.
+// The table is computed once per set of denominations: for every multiple of the smallest note up to the largest
+// withdrawal it holds a short list of the combinations with the fewest notes, each built by dynamic programming
+// from the lists of smaller amounts. Planning a withdrawal then only scans that list against the notes left in
+// the cassettes, which takes about a microsecond. Only when the cassettes are so depleted that no listed
+// combination fits does it search the combinations the cassettes can still make.
+//
+// Among the listed combinations that fit, it prefers, in order:
+//   1. the one that draws on the fewest cassettes it leaves below their low-water mark, so one denomination
+//      does not run out while the others are still full;
+//   2. the fewest notes;
+//   3. the one that leaves the emptiest cassette fullest.
+// Immutable, so one planner serves any number of machines and threads.
+public final class DispensePlanner {
+    static final int MAX_DENOMINATIONS = 6;
+    private static final int BITS = 10; // Per denomination in a packed combination
+    private static final long COUNT_MASK = (1L << BITS) - 1;
+    private static final int CANDIDATES = 32; // Combinations kept per amount
+    private static final double LOW_WATER = 0.2; // Fraction of a cassette's capacity
+
+    private final long[] denominations; // Cents, largest first
+    private final long unit; // Every amount the notes can make is a multiple of this
+    private final long maxAmount;
+    private final int maxNotes;
+    private final long[][] table; // Indexed by amount / unit; packed combinations, fewest notes first
+
+    public DispensePlanner(long[] denominations, long maxAmount, int maxNotes) {
+        if (denominations.length == 0 || denominations.length > MAX_DENOMINATIONS) {
+            throw new IllegalArgumentException("Between 1 and " + MAX_DENOMINATIONS + " denominations are supported");
+        }
+        if (maxNotes <= 0 || maxNotes > COUNT_MASK) {
+            throw new IllegalArgumentException("Notes per withdrawal must be between 1 and " + COUNT_MASK + ": " + maxNotes);
+        }
+        long unit = 0;
+        for (int i = 0; i < denominations.length; i++) {
+            if (denominations[i] <= 0 || (i > 0 && denominations[i] >= denominations[i - 1])) {
+                throw new IllegalArgumentException("Denominations must be positive and listed largest first");
+            }
+            unit = gcd(unit, denominations[i]);
+        }
+        if (maxAmount / unit > 1 << 20) {
+            throw new IllegalArgumentException("Largest withdrawal is too many times the smallest note: " + Money.format(maxAmount));
+        }
+        this.denominations = denominations.clone();
+        this.unit = unit;
+        this.maxAmount = maxAmount - maxAmount % unit;
+        this.maxNotes = maxNotes;
+        this.table = buildTable();
+    }
+
+    public int denominationCount() {
+        return denominations.length;
+    }
+
+    public long denomination(int index) {
+        return denominations[index];
+    }
+
+    public long maxAmount() {
+        return maxAmount;
+    }
+
+    // True if the amount is one this ATM could dispense with full cassettes
+    public boolean isDispensable(long amount) {
+        return amount > 0 && amount <= maxAmount && amount % unit == 0 && table[(int) (amount / unit)].length > 0;
+    }
+
+    // Notes of each denomination to hand out, or null if the notes left cannot make the amount.
+    // `available` and `capacity` are per denomination, in the same order as the denominations.
+    int[] plan(long amount, int[] available, int[] capacity) {
+        if (amount <= 0 || amount > maxAmount || amount % unit != 0) {
+            return null;
+        }
+        long best = -1;
+        int bestLow = 0;
+        int bestNotes = 0;
+        double bestFill = 0;
+        for (long combination : table[(int) (amount / unit)]) {
+            int low = 0;
+            int notes = 0;
+            double fill = 1;
+            boolean fits = true;
+            for (int i = 0; i < denominations.length; i++) {
+                int count = count(combination, i);
+                if (count == 0) {
+                    continue;
+                }
+                int left = available[i] - count;
+                if (left < 0) {
+                    fits = false;
+                    break;
+                }
+                if (left < capacity[i] * LOW_WATER) {
+                    low++;
+                }
+                notes += count;
+                fill = Math.min(fill, (double) left / capacity[i]);
+            }
+            if (fits && (best < 0 || low < bestLow || (low == bestLow && (notes < bestNotes || (notes == bestNotes && fill > bestFill))))) {
+                best = combination;
+                bestLow = low;
+                bestNotes = notes;
+                bestFill = fill;
+            }
+        }
+        if (best >= 0) {
+            int[] counts = new int[denominations.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = count(best, i);
+            }
+            return counts;
+        }
+        return search(amount / unit, available);
+    }
+
+    // table[a] from table[a - note] for every note: add one note to each of their combinations, keep the fewest
+    private long[][] buildTable() {
+        int units = (int) (maxAmount / unit);
+        long[][] table = new long[units + 1][];
+        table[0] = new long[] {0};
+        long[] candidates = new long[CANDIDATES * denominations.length];
+        int[] notes = new int[candidates.length];
+        for (int amount = 1; amount <= units; amount++) {
+            int size = 0;
+            for (int i = 0; i < denominations.length; i++) {
+                int step = (int) (denominations[i] / unit);
+                if (step > amount) {
+                    continue;
+                }
+                for (long smaller : table[amount - step]) {
+                    long combination = smaller + (1L << i * BITS);
+                    int count = noteCount(combination);
+                    if (count > maxNotes) {
+                        continue;
+                    }
+                    // Insertion sort by note count, dropping duplicates (the same notes reached in another order)
+                    int at = size;
+                    while (at > 0 && (notes[at - 1] > count || (notes[at - 1] == count && candidates[at - 1] > combination))) {
+                        at--;
+                    }
+                    if (at > 0 && candidates[at - 1] == combination) {
+                        continue;
+                    }
+                    System.arraycopy(candidates, at, candidates, at + 1, size - at);
+                    System.arraycopy(notes, at, notes, at + 1, size - at);
+                    candidates[at] = combination;
+                    notes[at] = count;
+                    size++;
+                }
+            }
+            table[amount] = Arrays.copyOf(candidates, Math.min(size, CANDIDATES));
+        }
+        return table;
+    }
+
+    // Fewest notes the cassettes can still make the amount with, trying large notes first. Only reached when
+    // the listed combinations all need notes that have run out, so it is rare and the amounts are small.
+    private int[] search(long units, int[] available) {
+        int[] counts = new int[denominations.length];
+        int[] best = new int[denominations.length];
+        int bestNotes = search(0, units, 0, counts, available, best, maxNotes + 1);
+        return bestNotes <= maxNotes ? best : null;
+    }
+
+    private int search(int index, long units, int notes, int[] counts, int[] available, int[] best, int bestNotes) {
+        if (units == 0) {
+            System.arraycopy(counts, 0, best, 0, counts.length);
+            return notes;
+        }
+        if (index == denominations.length) {
+            return bestNotes;
+        }
+        long step = denominations[index] / unit;
+        long most = Math.min(available[index], units / step);
+        for (long count = most; count >= 0; count--) {
+            long rest = units - count * step;
+            if (rest > 0 && index + 1 == denominations.length) {
+                continue;
+            }
+            // Not even all of the next largest note would finish with fewer notes than the best so far
+            long nextStep = index + 1 < denominations.length ? denominations[index + 1] / unit : 1;
+            if (notes + count + (rest + nextStep - 1) / nextStep >= bestNotes) {
+                continue;
+            }
+            counts[index] = (int) count;
+            bestNotes = search(index + 1, rest, notes + (int) count, counts, available, best, bestNotes);
+        }
+        counts[index] = 0;
+        return bestNotes;
+    }
+
+    private static int count(long combination, int index) {
+        return (int) (combination >>> index * BITS & COUNT_MASK);
+    }
+
+    private int noteCount(long combination) {
+        int total = 0;
+        for (int i = 0; i < denominations.length; i++) {
+            total += count(combination, i);
+        }
+        return total;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
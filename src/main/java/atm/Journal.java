@@ -0,0 +1,592 @@
+package atm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// Append-only write-ahead journal of every change to the ledger.
+// Each record is framed as [payload length][CRC32C of payload][payload], so a record torn by a crash is detected on replay.
+// Appends only copy into a memory buffer; a single writer thread drains the buffer to the file,
+// so every fsync covers all records appended while the previous one was running (group commit).
+public class Journal implements Closeable {
+    // How hard the journal tries to get records onto the disk
+    public enum FsyncPolicy {
+        ALWAYS,   // Every operation waits until its record is fsynced (shared with all operations in the same batch)
+        INTERVAL, // Records are fsynced in the background every flush interval; a crash can lose the last interval
+        NONE;     // Records are written but never fsynced; the operating system decides when they reach the disk
+
+        public static FsyncPolicy parse(String text) {
+            return valueOf(text.trim().toUpperCase());
+        }
+    }
+
+    // Receives the records of the journal in the order they were appended
+    public interface Visitor {
+        void onCreate(int accountNumber, PasscodeHash passcode);
+
+        void onDeposit(int accountNumber, long amount);
+
+        void onWithdraw(int accountNumber, long amount);
+
+        void onTransfer(int senderNumber, int recipientNumber, long amount);
+
+        void onPasscodeChange(int accountNumber, PasscodeHash newPasscode);
+
+        // A transfer to an account on another shard: the sender was debited (or, from a checkpoint, already had been)
+        void onShardDebit(long transferSequence, int shard, int senderNumber, int recipientNumber, long amount, boolean debited);
+
+        // The other shard answered; a refused transfer was paid back to the sender
+        void onShardSettle(long transferSequence, int shard, int senderNumber, int recipientNumber, long amount, boolean refunded);
+
+        // A transfer from another shard, credited to the recipient unless it was refused
+        void onShardCredit(int shard, long transferSequence, long batchFirst, int recipientNumber, int senderNumber,
+                           long amount, boolean applied);
+
+        // Checkpointed protocol state for one other shard (see CrossShardTransfers)
+        void onShardPeer(int shard, long nextOutgoing, long batchFirst, long incomingEnd, long rejectedMask);
+    }
+
+    static final byte CREATE = 1; // Plain passcode; only read from journals written before passcodes were hashed
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte TRANSFER = 4;
+    static final byte PASSCODE = 5; // Plain passcode, like CREATE
+    static final byte CREATE_HASHED = 6; // Followed by the PasscodeHash
+    static final byte PASSCODE_HASHED = 7;
+    static final byte SHARD_DEBIT = 8; // Cross-shard records carry extra longs after the usual fields
+    static final byte SHARD_SETTLE = 9;
+    static final byte SHARD_CREDIT = 10;
+    static final byte SHARD_PENDING = 11; // Like SHARD_DEBIT without the debit; written by checkpoints
+    static final byte SHARD_PEER = 12;
+
+    private static final int HEADER_SIZE = 8; // Payload length and checksum, one int each
+    private static final int PAYLOAD_SIZE = 25; // Type, sequence, account, other account or plain passcode, amount
+    private static final int MAX_PAYLOAD_SIZE = 256; // Anything larger can only be garbage from a torn write
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long DEFAULT_INTERVAL_MILLIS = 10;
+
+    private final Path basePath;
+    private final FsyncPolicy policy;
+    private final long intervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushNeeded = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private final CRC32C crc = new CRC32C(); // Guarded by lock
+    private final byte[] scratch = new byte[MAX_PAYLOAD_SIZE]; // Guarded by lock, reused for every record
+    private final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+
+    // Segment files by the sequence number of their first record. Guarded by lock.
+    // The journal file itself is the first segment; each rotation starts a new "<journal>.<first sequence>" file.
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private FileChannel channel; // Current (last) segment. Guarded by lock.
+    private ByteBuffer filling = ByteBuffer.allocateDirect(BUFFER_SIZE); // Appended to under the lock
+    private ByteBuffer draining = ByteBuffer.allocateDirect(BUFFER_SIZE); // Owned by the writer thread
+    private long nextSequence = 1;
+    private long durableSequence = 0; // Highest sequence that has reached the file (and the disk, unless policy is NONE)
+    private boolean replayed = false;
+    private boolean closed = false;
+    private boolean flushRequested = false; // Someone is waiting, so the writer must not sit out the rest of its interval
+    private IOException failure;
+    private Thread writer;
+
+    public Journal(Path path, FsyncPolicy policy) {
+        this(path, policy, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public Journal(Path path, FsyncPolicy policy, long flushIntervalMillis) {
+        this.basePath = path.toAbsolutePath();
+        this.policy = policy;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    }
+
+    public FsyncPolicy policy() {
+        return policy;
+    }
+
+    public long replay(Visitor visitor) throws IOException {
+        return replay(visitor, 0);
+    }
+
+    // Replays every intact record after the given sequence number into the visitor and returns the last sequence number.
+    // Segments that only hold older records (already covered by a snapshot) are skipped without being read.
+    // Reading stops at the first record that is incomplete or fails its checksum; it and everything after it
+    // is cut off the last segment, since only the last write before a crash can be torn.
+    // Must be called exactly once, before anything is appended.
+    public long replay(Visitor visitor, long afterSequence) throws IOException {
+        if (replayed) {
+            throw new IllegalStateException("Journal has already been replayed");
+        }
+        TreeMap<Long, Path> found = findSegments();
+        if (found.isEmpty()) {
+            found.put(afterSequence + 1, afterSequence == 0 ? basePath : segmentPath(afterSequence + 1));
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long lastSequence = -1; // Unknown until the first segment that is read
+        FileChannel current = null;
+        for (Map.Entry<Long, Path> segment : found.entrySet()) {
+            long first = segment.getKey();
+            Long next = found.higherKey(first);
+            if (next != null && next <= afterSequence + 1) {
+                continue; // Every record in this segment is older than the snapshot
+            }
+            if (lastSequence == -1 ? first > afterSequence + 1 : first != lastSequence + 1) {
+                throw new IOException("Journal is missing records before sequence " + first);
+            }
+            FileChannel segmentChannel = FileChannel.open(segment.getValue(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                lastSequence = replaySegment(segmentChannel, buffer, first - 1, afterSequence, visitor, next == null);
+            } catch (IOException | RuntimeException e) {
+                segmentChannel.close();
+                throw e;
+            }
+            if (next == null) {
+                current = segmentChannel; // Appends continue at the end of the last segment
+            } else {
+                segmentChannel.close();
+            }
+        }
+        lock.lock();
+        try {
+            segments.putAll(found);
+            channel = current;
+            nextSequence = lastSequence + 1;
+            durableSequence = lastSequence;
+            replayed = true;
+            writer = new Thread(this::writeLoop, "journal-writer");
+            writer.setDaemon(true);
+            writer.start();
+        } finally {
+            lock.unlock();
+        }
+        return lastSequence;
+    }
+
+    // Reads one segment and returns the sequence number of its last intact record.
+    // A damaged record is only allowed at the end of the last segment; anywhere else the journal is corrupt.
+    private static long replaySegment(FileChannel segment, ByteBuffer buffer, long lastSequence, long afterSequence,
+                                      Visitor visitor, boolean isLast) throws IOException {
+        CRC32C checksum = new CRC32C();
+        long fileOffset = 0; // File position of the first byte in the buffer
+        long validEnd = 0;   // File position just after the last intact record
+        boolean endOfFile = false;
+        buffer.clear();
+        segment.position(0);
+        scan:
+        while (true) {
+            if (!endOfFile && buffer.hasRemaining()) {
+                endOfFile = segment.read(buffer) < 0;
+            }
+            buffer.flip();
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int recordStart = buffer.position();
+                int length = buffer.getInt(recordStart);
+                if (length < PAYLOAD_SIZE || length > MAX_PAYLOAD_SIZE) {
+                    break scan; // Garbage length, so this is where the intact journal ends
+                }
+                if (buffer.remaining() < HEADER_SIZE + length) {
+                    break; // Record continues past the buffer; read more
+                }
+                int expected = buffer.getInt(recordStart + 4);
+                int payloadStart = recordStart + HEADER_SIZE;
+                int dataEnd = buffer.limit();
+                buffer.limit(payloadStart + length).position(payloadStart);
+                checksum.reset();
+                checksum.update(buffer);
+                buffer.limit(dataEnd);
+                long sequence = buffer.getLong(payloadStart + 1);
+                if ((int) checksum.getValue() != expected || sequence != lastSequence + 1) {
+                    break scan;
+                }
+                if (sequence > afterSequence) {
+                    apply(buffer, payloadStart, length, visitor);
+                }
+                lastSequence = sequence;
+                buffer.position(payloadStart + length);
+                validEnd = fileOffset + buffer.position();
+            }
+            if (endOfFile) {
+                break; // Any bytes left over are the start of a torn last record
+            }
+            fileOffset += buffer.position();
+            buffer.compact(); // Keep the partial record and fill up behind it
+        }
+        if (segment.size() > validEnd) {
+            if (!isLast) {
+                throw new IOException("Journal segment is damaged at byte " + validEnd);
+            }
+            segment.truncate(validEnd);
+            segment.force(true);
+        }
+        segment.position(validEnd);
+        return lastSequence;
+    }
+
+    // Sequence number of the last appended record
+    public long lastSequence() {
+        lock.lock();
+        try {
+            return nextSequence - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ends the current segment and starts a new one, returning the sequence number of the last record before the switch.
+    // Waits for everything appended so far to reach the disk. The caller must stop appends while this runs
+    // (the ledger holds its snapshot cut), so the returned sequence marks an exact point in the journal.
+    public long rotate() throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure; // Records may be lost, so nothing after the failure can be counted as covered
+            }
+            long last = nextSequence - 1;
+            flushRequested = true;
+            flushNeeded.signal();
+            while (durableSequence < last) {
+                if (failure != null) {
+                    throw failure;
+                }
+                flushed.awaitUninterruptibly();
+            }
+            // The writer has written everything and cannot pick up new work while we hold the lock
+            channel.force(true);
+            if (segments.lastKey() == last + 1) {
+                return last; // Nothing was appended since the last rotation; keep the empty segment
+            }
+            Path path = segmentPath(last + 1);
+            FileChannel next = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.close();
+            channel = next;
+            segments.put(last + 1, path);
+            return last;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deletes the segments whose records all have a sequence number of at most the given one (e.g. covered by a snapshot)
+    public void deleteSegmentsThrough(long sequence) throws IOException {
+        lock.lock();
+        try {
+            Map.Entry<Long, Path> segment = segments.firstEntry();
+            while (segment != null) {
+                Long next = segments.higherKey(segment.getKey());
+                if (next == null || next > sequence + 1) {
+                    break; // This segment still holds newer records; the current segment is never deleted
+                }
+                Files.deleteIfExists(segment.getValue());
+                segments.remove(segment.getKey());
+                segment = segments.firstEntry();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Path segmentPath(long firstSequence) {
+        return basePath.resolveSibling(basePath.getFileName() + "." + firstSequence);
+    }
+
+    // Lists the journal file and every "<journal>.<number>" file next to it
+    private TreeMap<Long, Path> findSegments() throws IOException {
+        TreeMap<Long, Path> found = new TreeMap<>();
+        if (Files.exists(basePath)) {
+            found.put(1L, basePath);
+        }
+        String prefix = basePath.getFileName() + ".";
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(basePath.getParent(), prefix + "*")) {
+            for (Path sibling : siblings) {
+                String suffix = sibling.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+                    found.put(Long.parseLong(suffix), sibling);
+                }
+            }
+        }
+        return found;
+    }
+
+    // Append methods return the sequence number of the record. Pass it to commit() once no locks are held.
+    public long appendCreate(int accountNumber, PasscodeHash passcode) {
+        return append(CREATE_HASHED, accountNumber, 0, 0, passcode, null);
+    }
+
+    public long appendDeposit(int accountNumber, long amount) {
+        return append(DEPOSIT, accountNumber, 0, amount, null, null);
+    }
+
+    public long appendWithdraw(int accountNumber, long amount) {
+        return append(WITHDRAW, accountNumber, 0, amount, null, null);
+    }
+
+    public long appendTransfer(int senderNumber, int recipientNumber, long amount) {
+        return append(TRANSFER, senderNumber, recipientNumber, amount, null, null);
+    }
+
+    public long appendPasscodeChange(int accountNumber, PasscodeHash newPasscode) {
+        return append(PASSCODE_HASHED, accountNumber, 0, 0, newPasscode, null);
+    }
+
+    public long appendShardDebit(long transferSequence, int shard, int senderNumber, int recipientNumber, long amount) {
+        return append(SHARD_DEBIT, senderNumber, recipientNumber, amount, null, new long[]{transferSequence, shard});
+    }
+
+    public long appendShardPending(long transferSequence, int shard, int senderNumber, int recipientNumber, long amount) {
+        return append(SHARD_PENDING, senderNumber, recipientNumber, amount, null, new long[]{transferSequence, shard});
+    }
+
+    public long appendShardSettle(long transferSequence, int shard, int senderNumber, int recipientNumber, long amount,
+                                  boolean refunded) {
+        return append(SHARD_SETTLE, senderNumber, recipientNumber, amount, null,
+                new long[]{transferSequence, shard, refunded ? 1 : 0});
+    }
+
+    public long appendShardCredit(int shard, long transferSequence, long batchFirst, int recipientNumber, int senderNumber,
+                                  long amount, boolean applied) {
+        return append(SHARD_CREDIT, recipientNumber, senderNumber, amount, null,
+                new long[]{transferSequence, shard, batchFirst, applied ? 1 : 0});
+    }
+
+    public long appendShardPeer(int shard, long nextOutgoing, long batchFirst, long incomingEnd, long rejectedMask) {
+        return append(SHARD_PEER, shard, 0, 0, null, new long[]{nextOutgoing, batchFirst, incomingEnd, rejectedMask});
+    }
+
+    // Waits until the record is as durable as the fsync policy promises. Only ALWAYS actually waits.
+    public void commit(long sequence) {
+        if (policy != FsyncPolicy.ALWAYS) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (durableSequence < sequence) {
+                flushRequested = true;
+                flushNeeded.signal();
+            }
+            while (durableSequence < sequence) {
+                checkFailure();
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes and fsyncs everything appended so far, whatever the policy
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            long target = nextSequence - 1;
+            flushRequested = true;
+            flushNeeded.signal();
+            while (durableSequence < target) {
+                if (failure != null) {
+                    throw failure;
+                }
+                flushed.awaitUninterruptibly();
+            }
+            channel.force(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread running;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flushNeeded.signal();
+            running = writer;
+        } finally {
+            lock.unlock();
+        }
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (channel == null) {
+            return; // Never replayed, so no segment was opened
+        }
+        try {
+            if (failure == null) {
+                channel.force(true);
+            }
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private long append(byte type, int accountNumber, int other, long amount, PasscodeHash passcode, long[] extra) {
+        int length = PAYLOAD_SIZE + (passcode == null ? 0 : PasscodeHash.ENCODED_SIZE) + (extra == null ? 0 : extra.length * 8);
+        lock.lock();
+        try {
+            if (!replayed || closed) {
+                throw new IllegalStateException(closed ? "Journal is closed" : "Journal must be replayed before appending");
+            }
+            checkFailure();
+            while (filling.remaining() < HEADER_SIZE + length) {
+                flushRequested = true;
+                flushNeeded.signal(); // Buffer is full; wait for the writer to swap it out
+                flushed.awaitUninterruptibly();
+                checkFailure();
+            }
+            long sequence = nextSequence++;
+            scratchBuffer.clear();
+            scratchBuffer.put(type).putLong(sequence).putInt(accountNumber).putInt(other).putLong(amount);
+            if (passcode != null) {
+                passcode.writeTo(scratchBuffer);
+            }
+            if (extra != null) {
+                for (long value : extra) {
+                    scratchBuffer.putLong(value);
+                }
+            }
+            crc.reset();
+            crc.update(scratch, 0, length);
+            filling.putInt(length).putInt((int) crc.getValue()).put(scratch, 0, length);
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long batchEnd;
+            FileChannel target;
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + intervalNanos;
+                while (filling.position() == 0 && !closed) {
+                    if (policy == FsyncPolicy.ALWAYS) {
+                        flushNeeded.awaitUninterruptibly();
+                    } else {
+                        waitUntil(deadline);
+                        if (System.nanoTime() >= deadline) {
+                            deadline = System.nanoTime() + intervalNanos;
+                        }
+                    }
+                }
+                if (filling.position() == 0) {
+                    return; // Closed and nothing left to write
+                }
+                if (policy != FsyncPolicy.ALWAYS && !closed && !flushRequested) {
+                    waitUntil(deadline); // Collect a whole interval's worth of records per write
+                }
+                flushRequested = false;
+                ByteBuffer full = filling;
+                filling = draining;
+                draining = full;
+                target = channel; // Rotation only switches channels while the writer is idle
+                batchEnd = nextSequence - 1;
+                flushed.signalAll(); // Appenders blocked on a full buffer can continue into the empty one
+            } finally {
+                lock.unlock();
+            }
+            try {
+                draining.flip();
+                while (draining.hasRemaining()) {
+                    target.write(draining);
+                }
+                draining.clear();
+                if (policy != FsyncPolicy.NONE) {
+                    target.force(false);
+                }
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                durableSequence = batchEnd;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Sleeps on flushNeeded until the deadline, a flush request or close. Caller holds the lock.
+    private void waitUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0 && !closed) {
+            try {
+                flushNeeded.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException("Journal write failed", failure);
+        }
+    }
+
+    private static void apply(ByteBuffer buffer, int payloadStart, int length, Visitor visitor) {
+        byte type = buffer.get(payloadStart);
+        int accountNumber = buffer.getInt(payloadStart + 9);
+        int other = buffer.getInt(payloadStart + 13);
+        long amount = buffer.getLong(payloadStart + 17);
+        int extra = payloadStart + PAYLOAD_SIZE; // Where the fields beyond the common ones start
+        int extraLength = switch (type) {
+            case CREATE_HASHED, PASSCODE_HASHED -> PasscodeHash.ENCODED_SIZE;
+            case SHARD_DEBIT, SHARD_PENDING -> 16;
+            case SHARD_SETTLE -> 24;
+            case SHARD_CREDIT, SHARD_PEER -> 32;
+            default -> 0;
+        };
+        if (length < PAYLOAD_SIZE + extraLength) {
+            throw new IllegalStateException("Journal record of type " + type + " is too short");
+        }
+        switch (type) {
+            case CREATE -> visitor.onCreate(accountNumber, PasscodeHash.unhashed(other));
+            case DEPOSIT -> visitor.onDeposit(accountNumber, amount);
+            case WITHDRAW -> visitor.onWithdraw(accountNumber, amount);
+            case TRANSFER -> visitor.onTransfer(accountNumber, other, amount);
+            case PASSCODE -> visitor.onPasscodeChange(accountNumber, PasscodeHash.unhashed(other));
+            case CREATE_HASHED -> visitor.onCreate(accountNumber, PasscodeHash.readFrom(buffer, extra));
+            case PASSCODE_HASHED -> visitor.onPasscodeChange(accountNumber, PasscodeHash.readFrom(buffer, extra));
+            case SHARD_DEBIT, SHARD_PENDING -> visitor.onShardDebit(buffer.getLong(extra), (int) buffer.getLong(extra + 8),
+                    accountNumber, other, amount, type == SHARD_DEBIT);
+            case SHARD_SETTLE -> visitor.onShardSettle(buffer.getLong(extra), (int) buffer.getLong(extra + 8),
+                    accountNumber, other, amount, buffer.getLong(extra + 16) != 0);
+            case SHARD_CREDIT -> visitor.onShardCredit((int) buffer.getLong(extra + 8), buffer.getLong(extra),
+                    buffer.getLong(extra + 16), accountNumber, other, amount, buffer.getLong(extra + 24) != 0);
+            case SHARD_PEER -> visitor.onShardPeer(accountNumber, buffer.getLong(extra), buffer.getLong(extra + 8),
+                    buffer.getLong(extra + 16), buffer.getLong(extra + 24));
+            default -> throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+}
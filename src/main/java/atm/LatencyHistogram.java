@@ -0,0 +1,108 @@
+package atm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts latencies in logarithmic buckets, like HdrHistogram: values below 64 ns get a bucket each, and every
+// power of two above that is split into 32 buckets, so a reported value is within about 3% of the real one.
+// Recording is one increment of a preallocated counter: lock-free, allocation-free and safe from any thread.
+// The counters are striped by thread so threads timing the same operation do not fight over one cache line.
+// Reads walk the buckets while recording goes on, so they see a close but not exact point in time.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Buckets per power of two
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2; // Values below this are counted exactly
+    private static final int MAX_BITS = 40; // Longer latencies (over 18 minutes) go into the last bucket
+    private static final int BUCKETS = LINEAR_LIMIT + (MAX_BITS - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS); // One run of buckets per stripe
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0; // nanoTime() is monotonic, but guard against callers mixing up start and end
+        }
+        counts.incrementAndGet(stripeOffset() + bucketOf(nanos));
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    // Computed from the buckets, so it carries the same 3% resolution as the percentiles
+    public double meanNanos() {
+        long count = 0;
+        double total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long inBucket = countIn(i);
+            count += inBucket;
+            total += inBucket * (double) highestValueIn(i);
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+    // Highest latency such that `percentile` percent of the recorded ones are at or below it, e.g. 99.9
+    public long percentileNanos(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += countIn(i);
+            if (seen >= rank) {
+                return highestValueIn(i);
+            }
+        }
+        return highestValueIn(BUCKETS - 1); // Recorded while we were counting
+    }
+
+    public long maxNanos() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (countIn(i) != 0) {
+                return highestValueIn(i);
+            }
+        }
+        return 0;
+    }
+
+    private long countIn(int bucket) {
+        long count = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            count += counts.get(stripe * BUCKETS + bucket);
+        }
+        return count;
+    }
+
+    // Spreads the thread's identity hash over the low bits that pick the stripe; not tied to how accounts are hashed
+    private static int stripeOffset() {
+        int h = System.identityHashCode(Thread.currentThread()) * 0x9E3779B9;
+        return ((h ^ h >>> 16) & (STRIPES - 1)) * BUCKETS;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude >= MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift); // The value's highest SUB_BUCKET_BITS + 1 bits, between 32 and 63
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+    }
+
+    private static long highestValueIn(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long top = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,760 @@
+package atm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Concurrent engine behind every account operation.
+// Deposits and withdrawals touch a single balance and are lock-free (compare-and-set on the account).
+// Transfers additionally hold the striped locks of both accounts, always taken in stripe order so they cannot deadlock.
+// When a journal is attached, every successful change is appended to it before the operation returns.
+// Each change and its journal record then happen inside the shared side of a read-write "cut" lock,
+// so a snapshot taking the exclusive side sees every balance exactly as of one journal position.
+// A change whose record cannot be appended (the journal is closed or its writer failed) is undone before the error
+// is thrown, so memory never holds a change the journal lacks.
+// Every public operation is timed and its outcome counted in the ledger's Metrics.
+public class Ledger {
+    private static final int DEFAULT_STRIPES = 1024;
+
+    // What total() found; amounts in cents
+    public static final class Total {
+        public final long balances;
+        public final long pending; // Sent to other shards and not yet acknowledged; 0 without sharding
+
+        Total(long balances, long pending) {
+            this.balances = balances;
+            this.pending = pending;
+        }
+    }
+
+    private final AccountRegistry accounts;
+    private final ReentrantLock[] stripes;
+    private final int stripeMask;
+    private final Object createLock = new Object();
+    private final ReentrantReadWriteLock cut = new ReentrantReadWriteLock();
+    private final RateLimiter loginFailures = new RateLimiter(1 << 20, 5, 5, TimeUnit.MINUTES); // Wrong passcodes per account
+    private final Metrics metrics = new Metrics();
+    private final PasscodeHasher passcodes;
+    private Journal journal; // Null while the ledger only lives in memory
+    private TransactionHistory history; // Null unless statements are kept
+    private CrossShardTransfers shards; // Null unless the accounts are split between processes
+
+    public Ledger() {
+        this(new AccountRegistry(), DEFAULT_STRIPES);
+    }
+
+    public Ledger(AccountRegistry accounts, int stripeCount) {
+        this(accounts, stripeCount, PasscodeHasher.withDefaults(PasscodeHasher.DEFAULT_ITERATIONS));
+    }
+
+    public Ledger(AccountRegistry accounts, int stripeCount, PasscodeHasher passcodes) {
+        if (stripeCount <= 0 || Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a positive power of two: " + stripeCount);
+        }
+        this.accounts = accounts;
+        this.stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.stripeMask = stripeCount - 1;
+        this.passcodes = passcodes;
+    }
+
+    public AccountRegistry accounts() {
+        return accounts;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    public PasscodeHasher passcodes() {
+        return passcodes;
+    }
+
+    // Records every later deposit, withdrawal and transfer for statements. Call once at startup, like recover().
+    public void attachHistory(TransactionHistory history) {
+        this.history = history;
+    }
+
+    // Null if no history is kept
+    public TransactionHistory history() {
+        return history;
+    }
+
+    // Makes this ledger one shard of several: it only holds the accounts the map assigns to it and moves money
+    // to the others through CrossShardTransfers. Call once at startup, before recover(); call shards().start() after it.
+    public void enableSharding(ShardMap map) {
+        this.shards = new CrossShardTransfers(this, map);
+    }
+
+    // Null unless sharding is enabled
+    public CrossShardTransfers shards() {
+        return shards;
+    }
+
+    // True if the account number belongs to another shard
+    public boolean isRemote(int accountNumber) {
+        return shards != null && !shards.map().isLocal(accountNumber);
+    }
+
+    public long recover(Journal journal) throws IOException {
+        return recover(journal, null);
+    }
+
+    // Rebuilds the accounts from the snapshot (if there is one) and the journal records after it,
+    // then records every later change in the journal. Returns the sequence number of the last record.
+    // Call once at startup, before the ledger is shared with other threads.
+    public long recover(Journal journal, Path snapshotPath) throws IOException {
+        Snapshot snapshot = snapshotPath == null ? null : Snapshot.read(snapshotPath);
+        long afterSequence = 0;
+        if (snapshot != null) {
+            snapshot.restore(this);
+            afterSequence = snapshot.lastSequence();
+        }
+        long records = journal.replay(new Journal.Visitor() {
+            @Override
+            public void onCreate(int accountNumber, PasscodeHash passcode) {
+                accounts.putIfAbsent(new ATMSimulator(Ledger.this, accountNumber, passcode)); // Hashed below if plain
+            }
+
+            @Override
+            public void onDeposit(int accountNumber, long amount) {
+                replayed(accountNumber).adjustBalance(amount);
+            }
+
+            @Override
+            public void onWithdraw(int accountNumber, long amount) {
+                replayed(accountNumber).adjustBalance(-amount);
+            }
+
+            @Override
+            public void onTransfer(int senderNumber, int recipientNumber, long amount) {
+                replayed(senderNumber).adjustBalance(-amount);
+                replayed(recipientNumber).adjustBalance(amount);
+            }
+
+            @Override
+            public void onPasscodeChange(int accountNumber, PasscodeHash newPasscode) {
+                replayed(accountNumber).setPasscode(newPasscode);
+            }
+
+            @Override
+            public void onShardDebit(long transferSequence, int shard, int senderNumber, int recipientNumber, long amount,
+                                     boolean debited) {
+                if (debited) {
+                    replayed(senderNumber).adjustBalance(-amount);
+                }
+                replayedShards().outbox(shard).add(new CrossShardTransfers.Pending(transferSequence, senderNumber, recipientNumber, amount));
+            }
+
+            @Override
+            public void onShardSettle(long transferSequence, int shard, int senderNumber, int recipientNumber, long amount,
+                                      boolean refunded) {
+                replayedShards().outbox(shard).remove(transferSequence);
+                if (refunded) {
+                    replayed(senderNumber).adjustBalance(amount);
+                }
+            }
+
+            @Override
+            public void onShardCredit(int shard, long transferSequence, long batchFirst, int recipientNumber, int senderNumber,
+                                      long amount, boolean applied) {
+                if (applied) {
+                    replayed(recipientNumber).adjustBalance(amount);
+                }
+                replayedShards().restoreCredit(shard, transferSequence, batchFirst, applied);
+            }
+
+            @Override
+            public void onShardPeer(int shard, long nextOutgoing, long batchFirst, long incomingEnd, long rejectedMask) {
+                replayedShards().restorePeer(shard, nextOutgoing, batchFirst, incomingEnd, rejectedMask);
+            }
+        }, afterSequence);
+        upgradePasscodes();
+        this.journal = journal;
+        return records;
+    }
+
+    // Hashes the passcodes that older snapshots and journals stored in plain, in parallel. Only the final passcode of
+    // each account is hashed, however often the journal changed it.
+    private void upgradePasscodes() {
+        List<ATMSimulator> upgraded = new ArrayList<>();
+        List<PasscodeHash> plain = new ArrayList<>();
+        accounts.forEach(account -> {
+            if (!account.passcode().isHashed()) {
+                upgraded.add(account);
+                plain.add(account.passcode());
+            }
+        });
+        if (plain.isEmpty()) {
+            return;
+        }
+        PasscodeHash[] hashed = passcodes.upgradeAll(plain);
+        for (int i = 0; i < hashed.length; i++) {
+            upgraded.get(i).setPasscode(hashed[i]);
+        }
+    }
+
+    // Writes a snapshot of every account and drops the journal segments it makes redundant.
+    // Operations only pause while the balances are copied into arrays; the file is written after they resume.
+    public long snapshot(Path snapshotPath) throws IOException {
+        if (journal == null) {
+            throw new IllegalStateException("Snapshots need a journal to replay from");
+        }
+        Snapshot snapshot;
+        cut.writeLock().lock();
+        try {
+            // The journal starts a new segment here, so the records after the snapshot are in files of their own
+            snapshot = Snapshot.capture(accounts, journal.rotate());
+            if (shards != null) {
+                shards.checkpoint(journal); // The segments about to be deleted hold the only record of transfers in flight
+            }
+        } finally {
+            cut.writeLock().unlock();
+        }
+        snapshot.write(snapshotPath);
+        if (shards != null) {
+            journal.flush(); // The checkpoint must be on disk before the records it replaces are deleted
+        }
+        journal.deleteSegmentsThrough(snapshot.lastSequence());
+        if (history != null) {
+            history.flush(); // Bounds the history lost in a crash the same way the snapshot bounds the replay
+        }
+        return snapshot.lastSequence();
+    }
+
+    void restoreAccount(int accountNumber, PasscodeHash passcode, long balance) {
+        ATMSimulator account = new ATMSimulator(this, accountNumber, passcode); // recover() hashes plain passcodes
+        account.adjustBalance(balance);
+        accounts.putIfAbsent(account);
+    }
+
+    // Creates and registers a new account. Returns null if the account number is already in use.
+    // Numbers that belong to another shard are refused the same way.
+    // Throws RejectedExecutionException when too many passcodes are waiting to be hashed; so do login() and changePasscode().
+    public ATMSimulator createAccount(int accountNumber, int passcode) {
+        if (isRemote(accountNumber) || accounts.contains(accountNumber)) {
+            return null; // Checked again below; this only saves hashing a passcode for nothing
+        }
+        PasscodeHash hash;
+        try {
+            hash = passcodes.hash(passcode); // Slow, so done before taking any lock
+        } catch (RejectedExecutionException e) {
+            metrics.reject(Metrics.Rejection.BUSY);
+            throw e;
+        }
+        return register(accountNumber, hash);
+    }
+
+    // Creates an account with a passcode hashed beforehand and deposits its opening balance, journaled exactly like
+    // createAccount() and deposit() but without counting the deposit in the metrics. For load tests, which give every
+    // account the same hash rather than spend minutes hashing one per account. Returns null like createAccount().
+    ATMSimulator openAccount(int accountNumber, PasscodeHash hash, long openingBalance) {
+        ATMSimulator account = isRemote(accountNumber) ? null : register(accountNumber, hash);
+        if (account != null && openingBalance > 0 && applyDeposit(account, openingBalance) != TransactionResult.SUCCESS) {
+            throw new IllegalArgumentException("Invalid opening balance: " + openingBalance);
+        }
+        return account;
+    }
+
+    private ATMSimulator register(int accountNumber, PasscodeHash hash) {
+        ATMSimulator account;
+        long sequence = 0;
+        // Journal the account before publishing it, so its creation always precedes its first transaction in the journal
+        beginChange();
+        try {
+            synchronized (createLock) {
+                if (accounts.contains(accountNumber)) {
+                    return null;
+                }
+                if (journal != null) {
+                    sequence = journal.appendCreate(accountNumber, hash);
+                }
+                account = new ATMSimulator(this, accountNumber, hash);
+                accounts.putIfAbsent(account);
+            }
+        } finally {
+            endChange();
+        }
+        commit(sequence);
+        return account;
+    }
+
+    public ATMSimulator find(int accountNumber) {
+        return accounts.get(accountNumber);
+    }
+
+    // Returns the account if the number exists and the passcode matches, otherwise null.
+    // Every miss counts against the account number; once it has had too many, logins are refused without checking.
+    public ATMSimulator login(int accountNumber, int passcode) {
+        long start = System.nanoTime();
+        if (loginFailures.isBlocked(accountNumber)) {
+            metrics.reject(Metrics.Rejection.LOCKED_OUT);
+            metrics.record(Metrics.Operation.LOGIN, start);
+            return null;
+        }
+        ATMSimulator account = accounts.get(accountNumber);
+        boolean matches;
+        try {
+            matches = account != null && account.validatePasscode(passcode);
+        } catch (RejectedExecutionException e) { // Not the user's fault, so it does not count as a failure
+            metrics.reject(Metrics.Rejection.BUSY);
+            metrics.record(Metrics.Operation.LOGIN, start);
+            throw e;
+        }
+        if (!matches) {
+            loginFailures.recordFailure(accountNumber); // Unknown numbers count too, against credential stuffing
+            metrics.reject(Metrics.Rejection.BAD_PASSCODE);
+            metrics.record(Metrics.Operation.LOGIN, start);
+            return null;
+        }
+        loginFailures.reset(accountNumber);
+        metrics.record(Metrics.Operation.LOGIN, start);
+        return account;
+    }
+
+    // Checks a recipient before the user is asked for the amount: SUCCESS for another account here or any account
+    // number of another shard (which says whether it exists once the amount is known). A refusal is counted in the
+    // metrics like a refused transfer.
+    public TransactionResult checkRecipient(ATMSimulator sender, int recipientNumber) {
+        ATMSimulator recipient = accounts.get(recipientNumber);
+        TransactionResult result;
+        if (recipient == null && !isRemote(recipientNumber)) {
+            result = TransactionResult.INVALID_RECIPIENT;
+        } else if (recipient == sender) {
+            result = TransactionResult.SELF_TRANSFER;
+        } else {
+            return TransactionResult.SUCCESS;
+        }
+        metrics.reject(result);
+        return result;
+    }
+
+    // How long logins to the account are refused after too many wrong passcodes, or 0 if they are not
+    public long loginRetryAfterMillis(int accountNumber) {
+        return loginFailures.retryAfterMillis(accountNumber);
+    }
+
+    public long balance(ATMSimulator account) {
+        long start = System.nanoTime();
+        long balance = account.getBalance();
+        metrics.record(Metrics.Operation.CHECK_BALANCE, start);
+        return balance;
+    }
+
+    public TransactionResult deposit(ATMSimulator account, long amount) {
+        long start = System.nanoTime();
+        TransactionResult result = applyDeposit(account, amount);
+        metrics.record(Metrics.Operation.DEPOSIT, result, start);
+        return result;
+    }
+
+    public TransactionResult withdraw(ATMSimulator account, long amount) {
+        long start = System.nanoTime();
+        TransactionResult result = applyWithdraw(account, amount);
+        metrics.record(Metrics.Operation.WITHDRAW, result, start);
+        return result;
+    }
+
+    public TransactionResult transfer(ATMSimulator sender, ATMSimulator recipient, long amount) {
+        long start = System.nanoTime();
+        TransactionResult result = applyTransfer(sender, recipient, amount);
+        metrics.record(Metrics.Operation.TRANSFER, result, start);
+        return result;
+    }
+
+    // Transfer to an account on another shard. The money leaves the sender now and reaches the recipient once
+    // the other shard has it; if that shard turns it down (say, the balance would overflow), it comes back.
+    public TransactionResult transferToShard(ATMSimulator sender, int recipientNumber, long amount) {
+        long start = System.nanoTime();
+        TransactionResult result = applyShardTransfer(sender, recipientNumber, amount);
+        metrics.record(Metrics.Operation.TRANSFER, result, start);
+        return result;
+    }
+
+    public void changePasscode(ATMSimulator account, int newPasscode) {
+        long start = System.nanoTime();
+        PasscodeHash hash;
+        try {
+            hash = passcodes.hash(newPasscode);
+        } catch (RejectedExecutionException e) {
+            metrics.reject(Metrics.Rejection.BUSY);
+            throw e;
+        }
+        applyPasscodeChange(account, hash); // Cached logins end with the old hash they were checked against
+        metrics.record(Metrics.Operation.CHANGE_PASSCODE, start);
+    }
+
+    private TransactionResult applyDeposit(ATMSimulator account, long amount) {
+        if (!isValidAmount(amount)) {
+            return TransactionResult.INVALID_AMOUNT;
+        }
+        long sequence = 0;
+        beginChange();
+        try {
+            if (!account.addBalance(amount)) {
+                return TransactionResult.BALANCE_OVERFLOW;
+            }
+            if (journal != null) {
+                try {
+                    sequence = journal.appendDeposit(account.getAccountNumber(), amount);
+                } catch (RuntimeException e) {
+                    account.adjustBalance(-amount); // Not journaled, so a snapshot must not see it either
+                    throw e;
+                }
+            }
+        } finally {
+            endChange();
+        }
+        commit(sequence);
+        if (history != null) {
+            history.recordDeposit(account, amount);
+        }
+        return TransactionResult.SUCCESS;
+    }
+
+    private TransactionResult applyWithdraw(ATMSimulator account, long amount) {
+        if (!isValidAmount(amount)) {
+            return TransactionResult.INVALID_AMOUNT;
+        }
+        long sequence = 0;
+        beginChange();
+        try {
+            // The balance check and the debit are a single atomic step, so concurrent sessions cannot overdraw
+            if (!account.subtractBalance(amount)) {
+                return TransactionResult.INSUFFICIENT_FUNDS;
+            }
+            if (journal != null) {
+                try {
+                    sequence = journal.appendWithdraw(account.getAccountNumber(), amount);
+                } catch (RuntimeException e) {
+                    account.adjustBalance(amount);
+                    throw e;
+                }
+            }
+        } finally {
+            endChange();
+        }
+        commit(sequence);
+        if (history != null) {
+            history.recordWithdrawal(account, amount);
+        }
+        return TransactionResult.SUCCESS;
+    }
+
+    private TransactionResult applyTransfer(ATMSimulator sender, ATMSimulator recipient, long amount) {
+        if (recipient == null) {
+            return TransactionResult.INVALID_RECIPIENT;
+        }
+        if (sender == recipient) {
+            return TransactionResult.SELF_TRANSFER;
+        }
+        if (!isValidAmount(amount)) {
+            return TransactionResult.INVALID_AMOUNT;
+        }
+        int senderStripe = stripeOf(sender.getAccountNumber());
+        int recipientStripe = stripeOf(recipient.getAccountNumber());
+        // Always lock the lower stripe first; two transfers in opposite directions then wait instead of deadlocking
+        ReentrantLock first = stripes[Math.min(senderStripe, recipientStripe)];
+        ReentrantLock second = stripes[Math.max(senderStripe, recipientStripe)];
+        long sequence = 0;
+        beginChange();
+        first.lock();
+        second.lock(); // Same lock when both accounts share a stripe; ReentrantLock allows that
+        try {
+            if (!sender.subtractBalance(amount)) {
+                return TransactionResult.INSUFFICIENT_FUNDS;
+            }
+            // Deposits are lock-free, so one can fill the sender's balance while this money is out of it and the refund
+            // would not fit either. The money goes to whichever account first has room for it; it is never dropped.
+            boolean credited;
+            while (true) {
+                if (recipient.addBalance(amount)) {
+                    credited = true;
+                    break;
+                }
+                if (sender.addBalance(amount)) {
+                    credited = false;
+                    break;
+                }
+                Thread.onSpinWait(); // Both full: wait for a withdrawal to make room
+            }
+            if (!credited) {
+                return TransactionResult.BALANCE_OVERFLOW;
+            }
+            if (journal != null) {
+                try {
+                    sequence = journal.appendTransfer(sender.getAccountNumber(), recipient.getAccountNumber(), amount);
+                } catch (RuntimeException e) {
+                    recipient.adjustBalance(-amount);
+                    sender.adjustBalance(amount);
+                    throw e;
+                }
+            }
+        } finally {
+            second.unlock();
+            first.unlock();
+            endChange();
+        }
+        commit(sequence); // Wait for the disk only after releasing the stripes
+        if (history != null) {
+            history.recordTransfer(sender, recipient, amount);
+        }
+        return TransactionResult.SUCCESS;
+    }
+
+    private TransactionResult applyShardTransfer(ATMSimulator sender, int recipientNumber, long amount) {
+        if (!isRemote(recipientNumber)) {
+            throw new IllegalArgumentException("Account " + recipientNumber + " is not on another shard");
+        }
+        if (!isValidAmount(amount)) {
+            return TransactionResult.INVALID_AMOUNT;
+        }
+        Boolean recipientExists = shards.exists(recipientNumber);
+        if (recipientExists == null) {
+            return TransactionResult.SHARD_UNAVAILABLE;
+        }
+        if (!recipientExists) {
+            return TransactionResult.INVALID_RECIPIENT;
+        }
+        CrossShardTransfers.Outbox outbox = shards.outbox(shards.map().shardOf(recipientNumber));
+        long sequence = 0;
+        beginChange();
+        try {
+            // The outbox's monitor keeps its transfers in journal order, so they are delivered in the order they were numbered
+            synchronized (outbox) {
+                if (!sender.subtractBalance(amount)) {
+                    return TransactionResult.INSUFFICIENT_FUNDS;
+                }
+                long transferSequence = outbox.nextSequence();
+                if (journal != null) {
+                    try {
+                        sequence = journal.appendShardDebit(transferSequence, outbox.shard, sender.getAccountNumber(),
+                                recipientNumber, amount);
+                    } catch (RuntimeException e) {
+                        sender.adjustBalance(amount); // Never sent: the outbox does not have it yet
+                        throw e;
+                    }
+                }
+                outbox.add(new CrossShardTransfers.Pending(transferSequence, sender.getAccountNumber(), recipientNumber, amount));
+            }
+        } finally {
+            endChange();
+        }
+        commit(sequence);
+        if (history != null) {
+            history.recordTransferOut(sender, recipientNumber, amount);
+        }
+        return TransactionResult.SUCCESS;
+    }
+
+    // Records the other shard's answer to a transfer, paying it back to the sender if it was turned down.
+    // Removing it from the outbox inside the cut keeps a snapshot's checkpoint from bringing it back.
+    void settleShardTransfer(CrossShardTransfers.Outbox outbox, CrossShardTransfers.Pending transfer, boolean refused) {
+        ATMSimulator sender = accounts.get(transfer.senderNumber);
+        long sequence = 0;
+        beginChange();
+        try {
+            if (refused) {
+                sender.adjustBalance(transfer.amount); // Cannot overflow: the balance held this money before
+            }
+            if (journal != null) {
+                try {
+                    sequence = journal.appendShardSettle(transfer.sequence, outbox.shard, transfer.senderNumber,
+                            transfer.recipientNumber, transfer.amount, refused);
+                } catch (RuntimeException e) {
+                    if (refused) {
+                        sender.adjustBalance(-transfer.amount); // Still in the outbox, so it is settled again later
+                    }
+                    throw e;
+                }
+            }
+            outbox.remove(transfer.sequence);
+        } finally {
+            endChange();
+        }
+        commit(sequence);
+        if (refused && history != null) {
+            history.recordTransferIn(sender, transfer.recipientNumber, transfer.amount);
+        }
+    }
+
+    // Credits a batch of transfers from another shard and returns a mask of the ones turned down (bit i for transfer i).
+    // Transfers already received, when the other shard sends a batch again, only have their earlier answer repeated.
+    long receiveShardCredits(int shard, long first, int[] recipientNumbers, int[] senderNumbers, long[] amounts) {
+        if (shards == null || shard < 0 || shard >= shards.map().shardCount() || shard == shards.map().localShard()) {
+            throw new IllegalArgumentException("Unexpected transfers from shard " + shard);
+        }
+        CrossShardTransfers.Inbox inbox = shards.inbox(shard);
+        ATMSimulator[] credited = new ATMSimulator[amounts.length];
+        long rejectedMask;
+        long sequence = 0;
+        beginChange(); // Before the inbox's monitor, the same order as a snapshot's checkpoint
+        try {
+            synchronized (inbox) {
+                inbox.begin(first);
+                for (int i = 0; i < amounts.length; i++) {
+                    long transferSequence = first + i;
+                    if (transferSequence < inbox.end) {
+                        continue;
+                    }
+                    ATMSimulator recipient = shards.map().isLocal(recipientNumbers[i]) ? accounts.get(recipientNumbers[i]) : null;
+                    boolean applied = recipient != null && isValidAmount(amounts[i]) && recipient.addBalance(amounts[i]);
+                    if (journal != null) {
+                        try {
+                            sequence = journal.appendShardCredit(shard, transferSequence, first, recipientNumbers[i],
+                                    senderNumbers[i], amounts[i], applied);
+                        } catch (RuntimeException e) {
+                            if (applied) {
+                                recipient.adjustBalance(-amounts[i]); // The ones before it were journaled and stay
+                            }
+                            throw e;
+                        }
+                    }
+                    inbox.received(transferSequence, applied);
+                    if (applied) {
+                        credited[i] = recipient;
+                    }
+                }
+                rejectedMask = inbox.rejectedMask;
+            }
+        } finally {
+            endChange();
+        }
+        commit(sequence);
+        flushJournal(); // The other shard forgets the transfers once answered, so they must be durable here first
+        if (history != null) {
+            for (int i = 0; i < credited.length; i++) {
+                if (credited[i] != null) {
+                    history.recordTransferIn(credited[i], senderNumbers[i], amounts[i]);
+                }
+            }
+        }
+        return rejectedMask;
+    }
+
+    // Makes everything journaled so far durable, whatever the fsync policy
+    void flushJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void applyPasscodeChange(ATMSimulator account, PasscodeHash newPasscode) {
+        long sequence = 0;
+        // Holding the stripe keeps the journal order of two passcode changes the same as the order they took effect
+        ReentrantLock stripe = stripes[stripeOf(account.getAccountNumber())];
+        beginChange();
+        stripe.lock();
+        try {
+            PasscodeHash oldPasscode = account.passcode();
+            account.setPasscode(newPasscode);
+            if (journal != null) {
+                try {
+                    sequence = journal.appendPasscodeChange(account.getAccountNumber(), newPasscode);
+                } catch (RuntimeException e) {
+                    account.setPasscode(oldPasscode);
+                    throw e;
+                }
+            }
+        } finally {
+            stripe.unlock();
+            endChange();
+        }
+        commit(sequence);
+    }
+
+    // Sums every balance as of one point. With a journal that point is a cut, as for a snapshot, so no change of any
+    // kind is caught halfway. Without one, all stripes are held, so no transfer is caught halfway; deposits and
+    // withdrawals may still run then, and they change the total on purpose.
+    public long totalBalance() {
+        return total().balances;
+    }
+
+    // The sum of every balance and, on a shard, the money that has left it and not yet been acknowledged by the other
+    // shard, both as of the same cut. A transfer leaving the shard is then counted in exactly one of the two.
+    public Total total() {
+        if (journal == null) {
+            lockAll();
+        } else {
+            cut.writeLock().lock();
+        }
+        try {
+            long[] balances = {0};
+            accounts.forEach(account -> balances[0] = Money.add(balances[0], account.getBalance()));
+            return new Total(balances[0], shards == null ? 0 : shards.pendingAmount());
+        } finally {
+            if (journal == null) {
+                unlockAll();
+            } else {
+                cut.writeLock().unlock();
+            }
+        }
+    }
+
+    // Without a journal there is nothing to keep consistent with, so the cut is skipped entirely
+    private void beginChange() {
+        if (journal != null) {
+            cut.readLock().lock();
+        }
+    }
+
+    private void endChange() {
+        if (journal != null) {
+            cut.readLock().unlock();
+        }
+    }
+
+    private void commit(long sequence) {
+        if (journal != null && sequence != 0) {
+            journal.commit(sequence);
+        }
+    }
+
+    private ATMSimulator replayed(int accountNumber) {
+        ATMSimulator account = accounts.get(accountNumber);
+        if (account == null) {
+            throw new IllegalStateException("Journal refers to unknown account " + accountNumber);
+        }
+        return account;
+    }
+
+    private CrossShardTransfers replayedShards() {
+        if (shards == null) {
+            throw new IllegalStateException("Journal holds transfers between shards but sharding is not enabled");
+        }
+        return shards;
+    }
+
+    private void lockAll() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock(); // Ascending order, the same global order transfers use
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    private int stripeOf(int accountNumber) {
+        return AccountRegistry.mix(accountNumber) & stripeMask;
+    }
+
+    private static boolean isValidAmount(long amount) {
+        return amount > 0;
+    }
+}
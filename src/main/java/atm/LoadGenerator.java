@@ -0,0 +1,423 @@
+package atm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives the ledger with sustained, realistic traffic, for capacity planning and to catch regressions in locking
+// and lookups that only show up under load, which the micro-benchmarks in Benchmarks cannot.
+//
+//   java -cp atm-simulator.jar atm.LoadGenerator                               100,000 accounts, one thread per CPU, as fast as
+//                                                                              possible, 60 s after 10 s of warmup that is not measured
+//   java -cp atm-simulator.jar atm.LoadGenerator --threads 64 --duration 3600  an hour-long soak test
+//   java -cp atm-simulator.jar atm.LoadGenerator --rate 20000                  20,000 operations per second, whatever the latency
+//   java -cp atm-simulator.jar atm.LoadGenerator --mix login=5,check_balance=35,deposit=20,withdraw=20,transfer=18,change_passcode=2 --zipf 1.2
+//   java -cp atm-simulator.jar atm.LoadGenerator --fsync interval              with a journal, in a temporary directory deleted afterwards
+//   java -cp atm-simulator.jar atm.LoadGenerator --hash-iterations 1000        cheaper passcode hashing, when logins should not dominate
+//
+// Accounts are picked from a Zipf distribution: the k-th busiest account is picked in proportion to 1/k^s, so a few
+// hot accounts take much of the traffic, as in real life (s = 0 picks uniformly). Which account numbers are hot is
+// shuffled, so they do not sit next to each other in the lock stripes or the account table.
+//
+// Closed loop (the default): every thread starts its next operation as soon as the last one finishes, and the
+// throughput is the result. Open loop (--rate): operations start on a fixed schedule however slow the ledger is,
+// and latency counts from when an operation was due, so a stall shows up in the percentiles instead of quietly
+// lowering the rate.
+//
+// At the end it prints the throughput and the p50, p99 and p99.9 latency per operation, then checks that money was
+// neither made nor lost: the balances must add up to the starting total plus every deposit minus every withdrawal,
+// and none may be negative. The exit code is 1 if the check fails.
+public class LoadGenerator {
+    private static final Metrics.Operation[] OPERATIONS = Metrics.Operation.values();
+    private static final int PASSCODE = 1234;
+    private static final long MAX_AMOUNT = 100 * Money.CENTS_PER_DOLLAR; // Per deposit, withdrawal or transfer
+
+    private final Ledger ledger;
+    private final int accountCount;
+    private final int[] accountNumbers; // By popularity rank: accountNumbers[0] is the hottest account
+    private final AtomicIntegerArray passcodes; // Current passcode of each account, by rank
+    private final double[] zipfCumulative; // Probability of picking rank <= i
+    private final int[] mixCumulative; // Cumulative weights by operation ordinal
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder completed = new LongAdder(); // Measured operations, so not those during warmup
+
+    // What one worker thread did; added up at the end
+    private static final class Tally {
+        long deposited;
+        long withdrawn;
+        long refused; // Operations the ledger turned down, e.g. for insufficient funds or a raced passcode change
+    }
+
+    LoadGenerator(Ledger ledger, int accountCount, double zipfExponent, int[] mixWeights, long seed) {
+        this.ledger = ledger;
+        this.accountCount = accountCount;
+        this.accountNumbers = new int[accountCount];
+        this.passcodes = new AtomicIntegerArray(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            accountNumbers[i] = i + 1;
+            passcodes.set(i, PASSCODE);
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = accountCount - 1; i > 0; i--) { // Fisher-Yates shuffle
+            int j = random.nextInt(i + 1);
+            int swap = accountNumbers[i];
+            accountNumbers[i] = accountNumbers[j];
+            accountNumbers[j] = swap;
+        }
+        this.zipfCumulative = new double[accountCount];
+        double total = 0;
+        for (int i = 0; i < accountCount; i++) {
+            total += 1 / Math.pow(i + 1, zipfExponent);
+            zipfCumulative[i] = total;
+        }
+        for (int i = 0; i < accountCount; i++) {
+            zipfCumulative[i] /= total;
+        }
+        this.mixCumulative = new int[OPERATIONS.length];
+        int sum = 0;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            sum += mixWeights[i];
+            mixCumulative[i] = sum;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("The operation mix needs at least one positive weight");
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int accounts = 100_000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long durationSeconds = 60;
+        long warmupSeconds = 10; // Lets the JIT compile the hot paths before anything is measured
+        long rate = 0; // Operations per second; 0 for closed loop
+        double zipf = 1.0;
+        String mix = "login=5,check_balance=30,deposit=20,withdraw=20,transfer=23,change_passcode=2";
+        long initialBalance = 1000 * Money.CENTS_PER_DOLLAR;
+        int iterations = PasscodeHasher.DEFAULT_ITERATIONS;
+        Journal.FsyncPolicy fsync = null; // No journal
+        long reportSeconds = 10;
+        long seed = 42;
+        int[] mixWeights = null; // Parsed after the loop, so a bad --mix is reported like any other bad value
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            try {
+                switch (option) {
+                    case "--accounts" -> accounts = Integer.parseInt(optionValue(args, ++i));
+                    case "--threads" -> threads = Integer.parseInt(optionValue(args, ++i));
+                    case "--duration" -> durationSeconds = Long.parseLong(optionValue(args, ++i));
+                    case "--warmup" -> warmupSeconds = Long.parseLong(optionValue(args, ++i));
+                    case "--rate" -> rate = Long.parseLong(optionValue(args, ++i));
+                    case "--zipf" -> zipf = Double.parseDouble(optionValue(args, ++i));
+                    case "--mix" -> mix = optionValue(args, ++i);
+                    case "--initial-balance" -> initialBalance = Money.parse(optionValue(args, ++i));
+                    case "--hash-iterations" -> iterations = Integer.parseInt(optionValue(args, ++i));
+                    case "--fsync" -> fsync = Journal.FsyncPolicy.parse(optionValue(args, ++i));
+                    case "--report-interval" -> reportSeconds = Long.parseLong(optionValue(args, ++i));
+                    case "--seed" -> seed = Long.parseLong(optionValue(args, ++i));
+                    default -> exitWithUsage("Unknown option: " + option);
+                }
+            } catch (IllegalArgumentException e) { // Including NumberFormatException
+                exitWithUsage("Invalid value for " + option + ": " + e.getMessage());
+            }
+        }
+        try {
+            mixWeights = parseMix(mix);
+        } catch (IllegalArgumentException e) {
+            exitWithUsage("Invalid --mix: " + e.getMessage());
+        }
+        if (accounts < 2 || threads <= 0 || durationSeconds <= 0 || warmupSeconds < 0 || rate < 0 || zipf < 0
+                || initialBalance < 0 || iterations <= 0 || reportSeconds < 0) {
+            exitWithUsage("Need at least 2 accounts, 1 thread, a positive duration and hash iteration count, "
+                    + "and a non-negative warmup, rate, exponent, balance and report interval");
+        }
+
+        // All accounts start with the same passcode hash; hashing one per account would take minutes at real cost
+        PasscodeHash passcode = PasscodeHash.create(PASSCODE, iterations);
+        Ledger ledger = newLedger(accounts, iterations);
+        Path journalDirectory = null;
+        Journal journal = null;
+        LoadGenerator generator;
+        long initialTotal;
+        Tally total;
+        try {
+            if (fsync == null) {
+                openAccounts(ledger, accounts, passcode, initialBalance);
+            } else {
+                // The accounts go through the journal like any others, but without waiting for the disk; the journal is
+                // then replayed with the policy under test, as when an ATM restarts
+                journalDirectory = Files.createTempDirectory("atm-load");
+                Path journalPath = journalDirectory.resolve("load.journal");
+                try (Journal unsynced = new Journal(journalPath, Journal.FsyncPolicy.NONE)) {
+                    Ledger setup = newLedger(accounts, iterations);
+                    setup.recover(unsynced);
+                    openAccounts(setup, accounts, passcode, initialBalance);
+                }
+                journal = new Journal(journalPath, fsync);
+                ledger.recover(journal);
+            }
+            generator = new LoadGenerator(ledger, accounts, zipf, mixWeights, seed);
+            initialTotal = ledger.totalBalance();
+            System.out.println(String.format(Locale.ROOT, "%d accounts, %s, zipf %.2f, %s, %d s%s",
+                    accounts, rate > 0 ? rate + " operations/s on " + threads + " threads" : threads + " threads closed loop",
+                    zipf, mix, durationSeconds, fsync != null ? ", journal fsync " + fsync.name().toLowerCase(Locale.ROOT) : ""));
+            total = generator.run(threads, rate, warmupSeconds, durationSeconds, reportSeconds);
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+            if (journalDirectory != null) {
+                deleteDirectory(journalDirectory);
+            }
+        }
+
+        generator.printReport(durationSeconds * 1_000_000_000L, total);
+        System.out.println();
+        System.out.println("Inside the ledger, warmup included (without time spent waiting for a turn):");
+        System.out.print(ledger.metrics());
+        System.out.println();
+        if (!generator.checkConservation(initialTotal, total)) {
+            System.exit(1);
+        }
+    }
+
+    // Runs the workers through the warmup and the duration, printing progress every reportSeconds,
+    // and returns what they did in total
+    Tally run(int threadCount, long rate, long warmupSeconds, long durationSeconds, long reportSeconds) throws InterruptedException {
+        Tally[] tallies = new Tally[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        long start = System.nanoTime();
+        long measureFrom = start + warmupSeconds * 1_000_000_000L;
+        long deadline = measureFrom + durationSeconds * 1_000_000_000L;
+        for (int t = 0; t < threadCount; t++) {
+            Tally tally = new Tally();
+            tallies[t] = tally;
+            SplittableRandom random = new SplittableRandom(t * 0x9E3779B97F4A7C15L + 1);
+            // In open loop each thread takes every threadCount-th slot of the schedule
+            long intervalNanos = rate > 0 ? Math.max(1, threadCount * 1_000_000_000L / rate) : 0;
+            long offset = rate > 0 ? t * intervalNanos / threadCount : 0;
+            threads[t] = new Thread(() -> work(random, tally, start + offset, intervalNanos, measureFrom, deadline), "load-" + t);
+            threads[t].start();
+        }
+
+        long lastCount = 0;
+        long lastTime = measureFrom;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                thread.join(reportSeconds * 1000); // 0 waits for the thread to end
+                long now = System.nanoTime();
+                if (reportSeconds > 0 && now - lastTime >= reportSeconds * 1_000_000_000L && now < deadline) {
+                    long count = completed.sum();
+                    System.out.println(String.format(Locale.ROOT, "%6d s %12d operations %12.0f/s",
+                            (now - measureFrom) / 1_000_000_000L, count, (count - lastCount) * 1e9 / (now - lastTime)));
+                    lastCount = count;
+                    lastTime = now;
+                }
+            }
+        }
+
+        Tally total = new Tally();
+        for (Tally tally : tallies) {
+            total.deposited += tally.deposited;
+            total.withdrawn += tally.withdrawn;
+            total.refused += tally.refused;
+        }
+        return total;
+    }
+
+    // Closed loop when intervalNanos is 0, otherwise one operation every intervalNanos starting at firstDue.
+    // Operations starting before measureFrom are warmup: they change balances like any other but are not timed.
+    private void work(SplittableRandom random, Tally tally, long firstDue, long intervalNanos, long measureFrom, long deadline) {
+        long due = firstDue;
+        while (true) {
+            long start = System.nanoTime();
+            if (intervalNanos > 0) {
+                if (due >= deadline) {
+                    return;
+                }
+                if (start < due) {
+                    LockSupport.parkNanos(due - start);
+                }
+                start = due; // Latency counts from when the operation was due, not from when it got to run
+                due += intervalNanos;
+            } else if (start >= deadline) {
+                return;
+            }
+            Metrics.Operation operation = pickOperation(random);
+            perform(operation, random, tally);
+            if (start >= measureFrom) {
+                latencies[operation.ordinal()].record(System.nanoTime() - start);
+                completed.increment();
+            }
+        }
+    }
+
+    private void perform(Metrics.Operation operation, SplittableRandom random, Tally tally) {
+        int rank = pickRank(random);
+        int number = accountNumbers[rank];
+        switch (operation) {
+            case LOGIN -> {
+                try {
+                    if (ledger.login(number, passcodes.get(rank)) == null) {
+                        tally.refused++;
+                    }
+                } catch (RejectedExecutionException e) { // Counted as busy in the ledger's metrics
+                    tally.refused++;
+                }
+            }
+            case CHECK_BALANCE -> ledger.balance(ledger.find(number));
+            case DEPOSIT -> {
+                long amount = 1 + random.nextLong(MAX_AMOUNT);
+                if (ledger.deposit(ledger.find(number), amount) == TransactionResult.SUCCESS) {
+                    tally.deposited += amount;
+                } else {
+                    tally.refused++;
+                }
+            }
+            case WITHDRAW -> {
+                long amount = 1 + random.nextLong(MAX_AMOUNT);
+                if (ledger.withdraw(ledger.find(number), amount) == TransactionResult.SUCCESS) {
+                    tally.withdrawn += amount;
+                } else {
+                    tally.refused++;
+                }
+            }
+            case TRANSFER -> {
+                int recipientRank = pickRank(random);
+                if (recipientRank == rank) {
+                    recipientRank = (rank + 1) % accountCount; // Self-transfers are refused up front and measure nothing
+                }
+                long amount = 1 + random.nextLong(MAX_AMOUNT);
+                if (ledger.transfer(ledger.find(number), ledger.find(accountNumbers[recipientRank]), amount) != TransactionResult.SUCCESS) {
+                    tally.refused++;
+                }
+            }
+            case CHANGE_PASSCODE -> {
+                // Alternates between two passcodes. A login racing the change may try the old one and be refused.
+                int newPasscode = passcodes.get(rank) ^ 1;
+                try {
+                    ledger.changePasscode(ledger.find(number), newPasscode);
+                    passcodes.set(rank, newPasscode);
+                } catch (RejectedExecutionException e) {
+                    tally.refused++;
+                }
+            }
+        }
+    }
+
+    private int pickRank(SplittableRandom random) {
+        int index = Arrays.binarySearch(zipfCumulative, random.nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, accountCount - 1);
+    }
+
+    private Metrics.Operation pickOperation(SplittableRandom random) {
+        int pick = random.nextInt(mixCumulative[mixCumulative.length - 1]);
+        for (int i = 0; i < mixCumulative.length; i++) {
+            if (pick < mixCumulative[i]) {
+                return OPERATIONS[i];
+            }
+        }
+        throw new IllegalStateException("Unreachable");
+    }
+
+    private void printReport(long elapsedNanos, Tally total) {
+        long operations = completed.sum();
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%d operations in %.1f s: %.0f per second, %d refused by the ledger (warmup included)",
+                operations, elapsedNanos / 1e9, operations * 1e9 / elapsedNanos, total.refused));
+        System.out.println(String.format(Locale.ROOT, "%-16s %12s %12s %10s %10s %10s %10s",
+                "operation", "count", "per_second", "p50_us", "p99_us", "p999_us", "max_us"));
+        for (Metrics.Operation operation : OPERATIONS) {
+            LatencyHistogram latency = latencies[operation.ordinal()];
+            System.out.println(String.format(Locale.ROOT, "%-16s %12d %12.0f %10.1f %10.1f %10.1f %10.1f",
+                    operation.name().toLowerCase(Locale.ROOT), latency.count(), latency.count() * 1e9 / elapsedNanos,
+                    latency.percentileNanos(50) / 1000.0, latency.percentileNanos(99) / 1000.0,
+                    latency.percentileNanos(99.9) / 1000.0, latency.maxNanos() / 1000.0));
+        }
+    }
+
+    // Money is only added by deposits and only removed by withdrawals; transfers must move it without loss
+    private boolean checkConservation(long initialTotal, Tally total) {
+        long expected = initialTotal + total.deposited - total.withdrawn;
+        long actual = ledger.totalBalance();
+        long[] negative = {0};
+        ledger.accounts().forEach(account -> {
+            if (account.getBalance() < 0) {
+                negative[0]++;
+            }
+        });
+        boolean balanced = actual == expected && negative[0] == 0;
+        System.out.println("Conservation of money: " + (balanced ? "OK" : "FAILED") + ". Expected $" + Money.format(expected)
+                + " in total, found $" + Money.format(actual) + "; " + negative[0] + " negative balances.");
+        return balanced;
+    }
+
+    // "login=5,deposit=20,..." into weights by operation ordinal; operations left out get no traffic
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String entry : mix.split(",")) {
+            String[] fields = entry.trim().split("=");
+            if (fields.length != 2) {
+                throw new IllegalArgumentException("Expected <operation>=<weight> but got \"" + entry + "\"");
+            }
+            Metrics.Operation operation = Metrics.Operation.valueOf(fields[0].trim().toUpperCase(Locale.ROOT));
+            int weight = Integer.parseInt(fields[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight for " + fields[0]);
+            }
+            weights[operation.ordinal()] = weight;
+        }
+        return weights;
+    }
+
+    private static Ledger newLedger(int accounts, int iterations) {
+        return new Ledger(new AccountRegistry(accounts), 1024, PasscodeHasher.withDefaults(iterations));
+    }
+
+    // Accounts 1 to `accounts`, created and funded through the ledger, so a journal records them like any others
+    private static void openAccounts(Ledger ledger, int accounts, PasscodeHash passcode, long initialBalance) {
+        for (int number = 1; number <= accounts; number++) {
+            ledger.openAccount(number, passcode, initialBalance);
+        }
+    }
+
+    // Deletes the temporary journal directory and whatever the ledger kept next to the journal, deepest first
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (var paths = Files.walk(directory)) {
+            List<Path> deepestFirst = paths.sorted(Comparator.reverseOrder()).toList();
+            for (Path path : deepestFirst) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    // Returns the value that follows a command-line option, or exits if it is missing
+    private static String optionValue(String[] args, int index) {
+        if (index >= args.length) {
+            exitWithUsage("Missing value for option " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static void exitWithUsage(String message) {
+        System.out.println(message);
+        System.out.println("Usage: java -cp atm-simulator.jar atm.LoadGenerator [--accounts <count>] [--threads <count>]");
+        System.out.println("                                                    [--duration <seconds>] [--warmup <seconds>]");
+        System.out.println("                                                    [--rate <operations per second>] [--zipf <exponent>]");
+        System.out.println("                                                    [--mix <operation>=<weight>,...] [--initial-balance <dollars>]");
+        System.out.println("                                                    [--hash-iterations <count>] [--fsync always|interval|none]");
+        System.out.println("                                                    [--report-interval <seconds>] [--seed <number>]");
+        System.exit(1);
+    }
+}
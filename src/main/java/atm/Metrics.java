@@ -0,0 +1,266 @@
+package atm;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Counts and times every ledger operation, and counts why operations were turned down.
+// Recording only bumps preallocated counters (see LatencyHistogram), so it stays on all the time.
+// The numbers are published as JMX MBeans under "ATMSimulator:*" and can be written to a text file periodically.
+public class Metrics {
+    public enum Operation {
+        LOGIN, CHECK_BALANCE, DEPOSIT, WITHDRAW, TRANSFER, CHANGE_PASSCODE
+    }
+
+    public enum Rejection {
+        INVALID_AMOUNT,
+        INSUFFICIENT_FUNDS,
+        INVALID_RECIPIENT,
+        SELF_TRANSFER,
+        BALANCE_OVERFLOW,
+        UNKNOWN_ACCOUNT,
+        SHARD_UNAVAILABLE, // Transfer to an account on a shard that could not be reached
+        BAD_PASSCODE,  // Login with an unknown account number or a wrong passcode
+        LOCKED_OUT,    // Login refused because the account had too many wrong passcodes
+        BUSY           // Login, new account or passcode change refused because too many passcodes were waiting to be hashed
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final Rejection[] REJECTIONS = Rejection.values();
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder[] rejections = new LongAdder[REJECTIONS.length];
+
+    public Metrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] = new LongAdder();
+        }
+    }
+
+    // Records one operation that started at `startNanos` (from System.nanoTime()) and has just finished
+    public void record(Operation operation, long startNanos) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    // Same, and counts the reason if the operation was turned down
+    public void record(Operation operation, TransactionResult result, long startNanos) {
+        record(operation, startNanos);
+        if (result != TransactionResult.SUCCESS) {
+            reject(result);
+        }
+    }
+
+    public void reject(Rejection reason) {
+        rejections[reason.ordinal()].increment();
+    }
+
+    // Counts why a result turned something down, for checks that are not a whole operation
+    public void reject(TransactionResult result) {
+        reject(rejectionOf(result));
+    }
+
+    public LatencyHistogram latency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public long rejections(Rejection reason) {
+        return rejections[reason.ordinal()].sum();
+    }
+
+    private static Rejection rejectionOf(TransactionResult result) {
+        return switch (result) {
+            case INVALID_AMOUNT -> Rejection.INVALID_AMOUNT;
+            case INSUFFICIENT_FUNDS -> Rejection.INSUFFICIENT_FUNDS;
+            case INVALID_RECIPIENT -> Rejection.INVALID_RECIPIENT;
+            case SELF_TRANSFER -> Rejection.SELF_TRANSFER;
+            case BALANCE_OVERFLOW -> Rejection.BALANCE_OVERFLOW;
+            case SHARD_UNAVAILABLE -> Rejection.SHARD_UNAVAILABLE;
+            case UNKNOWN_ACCOUNT, SUCCESS -> Rejection.UNKNOWN_ACCOUNT; // SUCCESS never gets here
+        };
+    }
+
+    // Registers one MBean per operation ("ATMSimulator:type=Operation,name=deposit") and one for the rejections
+    public void registerMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Operation operation : OPERATIONS) {
+            ObjectName name = new ObjectName("ATMSimulator:type=Operation,name=" + lowerCase(operation.name()));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(new OperationView(latency(operation)), OperationMXBean.class, true), name);
+            }
+        }
+        ObjectName name = new ObjectName("ATMSimulator:type=Rejections");
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new StandardMBean(new RejectionsView(), RejectionsMXBean.class, true), name);
+        }
+    }
+
+    // Replaces the file with the current numbers; written to a temporary file first so readers never see half of it
+    public void dump(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(temporary, toString());
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("# ATM metrics at ").append(Instant.now()).append('\n');
+        text.append(String.format(Locale.ROOT, "%-16s %12s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "mean_us", "p50_us", "p99_us", "p999_us", "max_us"));
+        for (Operation operation : OPERATIONS) {
+            LatencyHistogram latency = latency(operation);
+            text.append(String.format(Locale.ROOT, "%-16s %12d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    lowerCase(operation.name()), latency.count(), latency.meanNanos() / 1000,
+                    latency.percentileNanos(50) / 1000.0, latency.percentileNanos(99) / 1000.0,
+                    latency.percentileNanos(99.9) / 1000.0, latency.maxNanos() / 1000.0));
+        }
+        text.append('\n').append(String.format(Locale.ROOT, "%-18s %12s%n", "rejection", "count"));
+        for (Rejection reason : REJECTIONS) {
+            text.append(String.format(Locale.ROOT, "%-18s %12d%n", lowerCase(reason.name()), rejections(reason)));
+        }
+        return text.toString();
+    }
+
+    private static String lowerCase(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    // Latency of one operation, in microseconds
+    public interface OperationMXBean {
+        long getCount();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+    }
+
+    public interface RejectionsMXBean {
+        long getInvalidAmount();
+
+        long getInsufficientFunds();
+
+        long getInvalidRecipient();
+
+        long getSelfTransfer();
+
+        long getBalanceOverflow();
+
+        long getUnknownAccount();
+
+        long getShardUnavailable();
+
+        long getBadPasscode();
+
+        long getLockedOut();
+
+        long getBusy();
+    }
+
+    private static final class OperationView implements OperationMXBean {
+        private final LatencyHistogram latency;
+
+        OperationView(LatencyHistogram latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public long getCount() {
+            return latency.count();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return latency.meanNanos() / 1000;
+        }
+
+        @Override
+        public double getP50Micros() {
+            return latency.percentileNanos(50) / 1000.0;
+        }
+
+        @Override
+        public double getP99Micros() {
+            return latency.percentileNanos(99) / 1000.0;
+        }
+
+        @Override
+        public double getP999Micros() {
+            return latency.percentileNanos(99.9) / 1000.0;
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return latency.maxNanos() / 1000.0;
+        }
+    }
+
+    private final class RejectionsView implements RejectionsMXBean {
+        @Override
+        public long getInvalidAmount() {
+            return rejections(Rejection.INVALID_AMOUNT);
+        }
+
+        @Override
+        public long getInsufficientFunds() {
+            return rejections(Rejection.INSUFFICIENT_FUNDS);
+        }
+
+        @Override
+        public long getInvalidRecipient() {
+            return rejections(Rejection.INVALID_RECIPIENT);
+        }
+
+        @Override
+        public long getSelfTransfer() {
+            return rejections(Rejection.SELF_TRANSFER);
+        }
+
+        @Override
+        public long getBalanceOverflow() {
+            return rejections(Rejection.BALANCE_OVERFLOW);
+        }
+
+        @Override
+        public long getUnknownAccount() {
+            return rejections(Rejection.UNKNOWN_ACCOUNT);
+        }
+
+        @Override
+        public long getShardUnavailable() {
+            return rejections(Rejection.SHARD_UNAVAILABLE);
+        }
+
+        @Override
+        public long getBadPasscode() {
+            return rejections(Rejection.BAD_PASSCODE);
+        }
+
+        @Override
+        public long getLockedOut() {
+            return rejections(Rejection.LOCKED_OUT);
+        }
+
+        @Override
+        public long getBusy() {
+            return rejections(Rejection.BUSY);
+        }
+    }
+}
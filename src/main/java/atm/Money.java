@@ -0,0 +1,93 @@
+package atm;
+
+// Money amounts are held as a long count of cents, so arithmetic is exact and never drifts like double does.
+// This class converts between cents and the "123.45" text form used on the menu and in files.
+public final class Money {
+    public static final long CENTS_PER_DOLLAR = 100;
+
+    private Money() {
+    }
+
+    // Adds two amounts, throwing ArithmeticException instead of silently wrapping around
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    public static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    // Parses "12", "12.5" or "12.50" into cents. Throws NumberFormatException for anything else,
+    // including more than two decimal places or a value too large to hold.
+    public static long parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    public static long parse(CharSequence text, int start, int end) {
+        if (start >= end) {
+            throw new NumberFormatException("Empty amount");
+        }
+        boolean negative = false;
+        int i = start;
+        char first = text.charAt(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        long dollars = 0;
+        int digits = 0;
+        for (; i < end && text.charAt(i) != '.'; i++, digits++) {
+            if (digits == 16) {
+                throw new NumberFormatException("Amount is too large: " + text.subSequence(start, end));
+            }
+            dollars = dollars * 10 + digit(text, i); // 16 digits always fit, even after scaling to cents
+        }
+        long cents = 0;
+        int decimals = 0;
+        if (i < end) {
+            i++; // Skip the decimal point
+            for (; i < end; i++, decimals++) {
+                if (decimals == 2) {
+                    throw new NumberFormatException("Amounts can have at most two decimal places: " + text.subSequence(start, end));
+                }
+                cents = cents * 10 + digit(text, i);
+            }
+            if (decimals == 1) {
+                cents *= 10; // "12.5" means 12 dollars and 50 cents
+            }
+        }
+        if (digits == 0 && decimals == 0) {
+            throw new NumberFormatException("Not an amount: " + text.subSequence(start, end));
+        }
+        long total = dollars * CENTS_PER_DOLLAR + cents;
+        return negative ? -total : total;
+    }
+
+    // Writes the amount as "1234.05" into the given builder without creating any intermediate objects
+    public static StringBuilder appendTo(StringBuilder sb, long cents) {
+        long dollars = cents / CENTS_PER_DOLLAR;
+        long fraction = cents % CENTS_PER_DOLLAR;
+        if (cents < 0) {
+            sb.append('-');
+            dollars = -dollars; // Negating the parts separately also works for Long.MIN_VALUE
+            fraction = -fraction;
+        }
+        sb.append(dollars).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction);
+    }
+
+    public static String format(long cents) {
+        return appendTo(new StringBuilder(24), cents).toString();
+    }
+
+    private static int digit(CharSequence text, int index) {
+        char c = text.charAt(index);
+        if (c < '0' || c > '9') {
+            throw new NumberFormatException("Not an amount: " + text);
+        }
+        return c - '0';
+    }
+}
@@ -0,0 +1,91 @@
+package atm;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Salted PBKDF2 hash of a passcode. This is all that is kept of a passcode, in memory, in the journal and in snapshots.
+// Immutable, so an account can swap its hash in one write and readers never see half of a change.
+public final class PasscodeHash {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_SIZE = 16;
+    private static final int HASH_SIZE = 32;
+    static final int ENCODED_SIZE = 4 + SALT_SIZE + HASH_SIZE; // Iterations, salt, hash
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations; // 0 for a passcode read from a file written before passcodes were hashed
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private PasscodeHash(int iterations, byte[] salt, byte[] hash) {
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    // Hashes the passcode with a new random salt. Deliberately slow: run it on the PasscodeHasher's workers.
+    static PasscodeHash create(int passcode, int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Iterations must be positive: " + iterations);
+        }
+        byte[] salt = new byte[SALT_SIZE];
+        RANDOM.nextBytes(salt);
+        return new PasscodeHash(iterations, salt, derive(passcode, salt, iterations));
+    }
+
+    // Wraps a plain passcode from an old journal or snapshot until the ledger hashes it
+    static PasscodeHash unhashed(int passcode) {
+        return new PasscodeHash(0, new byte[0], ByteBuffer.allocate(4).putInt(passcode).array());
+    }
+
+    boolean isHashed() {
+        return iterations > 0;
+    }
+
+    int unhashedPasscode() {
+        return ByteBuffer.wrap(hash).getInt();
+    }
+
+    // Recomputes the hash for the candidate; as slow as create()
+    boolean matches(int passcode) {
+        if (!isHashed()) {
+            return unhashedPasscode() == passcode;
+        }
+        return MessageDigest.isEqual(hash, derive(passcode, salt, iterations)); // Constant time
+    }
+
+    // Writes ENCODED_SIZE bytes at the buffer's position
+    void writeTo(ByteBuffer buffer) {
+        if (!isHashed()) {
+            throw new IllegalStateException("Plain passcodes are never written out");
+        }
+        buffer.putInt(iterations).put(salt).put(hash);
+    }
+
+    // Reads ENCODED_SIZE bytes starting at `index`, leaving the buffer's position alone
+    static PasscodeHash readFrom(ByteBuffer buffer, int index) {
+        int iterations = buffer.getInt(index);
+        byte[] salt = new byte[SALT_SIZE];
+        byte[] hash = new byte[HASH_SIZE];
+        buffer.get(index + 4, salt);
+        buffer.get(index + 4 + SALT_SIZE, hash);
+        if (iterations <= 0) {
+            throw new IllegalStateException("Stored passcode hash has invalid iteration count " + iterations);
+        }
+        return new PasscodeHash(iterations, salt, hash);
+    }
+
+    private static byte[] derive(int passcode, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(Integer.toString(passcode).toCharArray(), salt, iterations, HASH_SIZE * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e); // Every JDK ships it
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package atm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hashes and verifies passcodes on a small pool of its own threads.
+// PBKDF2 is slow on purpose, so a burst of logins could otherwise occupy every CPU and stall deposits and transfers;
+// here at most `workers` passcodes are hashed at once and a bounded number wait their turn in the pool's queue.
+// Once the queue is full, hash() and verify() throw RejectedExecutionException at once instead of queueing requests
+// that would only time out behind it; the ledger counts those as busy and the caller asks the user to try again.
+// Verifications that succeeded recently are answered from a CredentialCache without hashing at all.
+public class PasscodeHasher {
+    public static final int DEFAULT_ITERATIONS = 100_000;
+    private static final int QUEUED_PER_WORKER = 32; // At 100k iterations, about a second and a half of waiting
+
+    private final int iterations;
+    private final int workerCount;
+    private final ThreadPoolExecutor workers;
+    private final CredentialCache verified; // Null to hash on every login
+
+    public PasscodeHasher(int iterations, int workerCount, CredentialCache verified) {
+        this(iterations, workerCount, workerCount * QUEUED_PER_WORKER, verified);
+    }
+
+    public PasscodeHasher(int iterations, int workerCount, int queueCapacity, CredentialCache verified) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Iterations must be positive: " + iterations);
+        }
+        if (workerCount <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Workers and queue capacity must be positive: " + workerCount + ", " + queueCapacity);
+        }
+        this.iterations = iterations;
+        this.workerCount = workerCount;
+        this.verified = verified;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), task -> {
+            Thread thread = new Thread(task, "passcode-hasher-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true); // Idle workers must not keep the program alive
+            return thread;
+        }); // The default policy throws RejectedExecutionException when the queue is full
+    }
+
+    // Half the CPUs for hashing, and a minute-long cache of up to 64K verified logins
+    public static PasscodeHasher withDefaults(int iterations) {
+        int workerCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return new PasscodeHasher(iterations, workerCount, new CredentialCache(1 << 16, 1, TimeUnit.MINUTES));
+    }
+
+    public PasscodeHash hash(int passcode) {
+        return onWorker(() -> PasscodeHash.create(passcode, iterations));
+    }
+
+    // Hashes passcodes read from an older file that stored them in plain, all workers at once and the calling thread
+    // too, since nothing else is waiting to be hashed while the ledger recovers. Hashes come back in the same order.
+    PasscodeHash[] upgradeAll(List<PasscodeHash> plain) {
+        PasscodeHash[] hashed = new PasscodeHash[plain.size()];
+        AtomicInteger next = new AtomicInteger();
+        Runnable share = () -> {
+            for (int i; (i = next.getAndIncrement()) < hashed.length; ) {
+                hashed[i] = PasscodeHash.create(plain.get(i).unhashedPasscode(), iterations);
+            }
+        };
+        List<Future<?>> helpers = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.min(workerCount, hashed.length - 1); i++) { // This thread takes a share too
+                helpers.add(workers.submit(share));
+            }
+        } catch (RejectedExecutionException e) {
+            // The queue is full of other work; the helpers already submitted and this thread are enough
+        }
+        share.run();
+        for (Future<?> helper : helpers) {
+            await(helper);
+        }
+        return hashed;
+    }
+
+    public boolean verify(int accountNumber, PasscodeHash hash, int passcode) {
+        if (verified != null && verified.contains(accountNumber, hash, passcode)) {
+            return true;
+        }
+        boolean matches = onWorker(() -> hash.matches(passcode));
+        if (matches && verified != null) {
+            verified.add(accountNumber, hash, passcode);
+        }
+        return matches;
+    }
+
+    // Runs the task on a hashing thread and waits for it.
+    // Throws RejectedExecutionException if too many tasks are waiting already.
+    private <T> T onWorker(Callable<T> task) {
+        return await(workers.submit(task));
+    }
+
+    private static <T> T await(Future<T> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing a passcode", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Passcode hashing failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package atm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts failures per key (an account number or a session id) in a sliding window and reports when a key has
+// had too many. Callers reject a blocked attempt straight away instead of sleeping.
+//
+// Every key lives in a single long of a fixed-size table: [key:32][window:16][failures this window:8][last window:8].
+// Updates are one compare-and-set, so checks are lock-free and allocation-free. Entries whose windows have passed
+// count as free slots and are reused by other keys, so idle entries expire without a cleanup thread.
+// A slot is never emptied once used (reset only clears the counts), so a lookup stops at the first empty slot.
+// A check reads the clock only for a key with enough failures to be blocked: for the rest, which is nearly every
+// account, it is a hash and a load or two.
+public class RateLimiter {
+    private static final int MAX_PROBES = 8; // Slots searched per key before the stalest one is reused
+    private static final int MAX_COUNT = 0xFF;
+
+    private final AtomicLongArray table;
+    private final int mask;
+    private final int limit;
+    private final long windowNanos;
+    private final long epoch = System.nanoTime();
+
+    // Blocks a key once it has about `limit` failures within the last `window`
+    public RateLimiter(int capacity, int limit, long window, TimeUnit unit) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a positive power of two: " + capacity);
+        }
+        if (limit <= 0 || limit > MAX_COUNT) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_COUNT + ": " + limit);
+        }
+        this.table = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.limit = limit;
+        this.windowNanos = unit.toNanos(window);
+    }
+
+    public boolean isBlocked(int key) {
+        return retryAfterMillis(key) > 0;
+    }
+
+    // How long until the key may try again, or 0 if it is not blocked
+    public long retryAfterMillis(int key) {
+        long entry = find(key);
+        // However much time has passed, the two windows' counts only ever weigh less than their sum
+        if (entry == 0 || (entry >>> 8 & 0xFF) + (entry & 0xFF) < limit) {
+            return 0;
+        }
+        long now = System.nanoTime() - epoch;
+        long window = now / windowNanos;
+        int current = current(entry, window);
+        int previous = previous(entry, window);
+        long elapsed = now - window * windowNanos;
+        if (!over(current, previous, elapsed)) {
+            return 0;
+        }
+        long waitNanos;
+        if (current >= limit) {
+            // Blocked for the rest of this window, then until the weight of this window's failures drops below the limit
+            waitNanos = windowNanos - elapsed + windowNanos - windowNanos * limit / current;
+        } else {
+            // Blocked until enough of the last window's weight has slid away
+            waitNanos = windowNanos - windowNanos * (limit - current) / previous - elapsed;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+    }
+
+    // Counts one failure for the key and returns true if the key is now blocked
+    public boolean recordFailure(int key) {
+        long now = System.nanoTime() - epoch;
+        long window = now / windowNanos;
+        long stamp = stamp(window);
+        int start = AccountRegistry.mix(key) & mask;
+        while (true) {
+            // Find the key's slot, or else the best slot to claim: the first empty one (the key cannot be further on),
+            // failing that a cleared or expired one, failing that the stalest
+            int slot = -1;
+            int victim = start;
+            long victimAge = -1;
+            long victimEntry = 0;
+            long entry = 0;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                int i = (start + probe) & mask;
+                long candidate = table.get(i);
+                if (candidate == 0) {
+                    victim = i;
+                    victimEntry = 0;
+                    break;
+                }
+                if (keyOf(candidate) == key) {
+                    slot = i;
+                    entry = candidate;
+                    break;
+                }
+                long age = (candidate & 0xFFFF) == 0 ? Long.MAX_VALUE : (stamp - stampOf(candidate)) & 0xFFFF;
+                if (age > victimAge) {
+                    victim = i;
+                    victimAge = age;
+                    victimEntry = candidate;
+                }
+            }
+            int current;
+            int previous;
+            if (slot >= 0) {
+                current = current(entry, window);
+                previous = previous(entry, window);
+            } else {
+                // Replacing another key forgets its failures; only happens when the table is crowded. If the slot
+                // changed since it was read, the compare-and-set fails and the search starts over.
+                slot = victim;
+                entry = victimEntry;
+                current = 0;
+                previous = 0;
+            }
+            if (current < MAX_COUNT) {
+                current++;
+            }
+            long updated = (long) key << 32 | stamp << 16 | (long) current << 8 | previous;
+            if (table.compareAndSet(slot, entry, updated)) {
+                return over(current, previous, now - window * windowNanos);
+            }
+        }
+    }
+
+    // Forgets the key's failures, e.g. after a successful login. The slot keeps the key with no counts, so it is
+    // never empty again, and is the first choice when another key needs room.
+    public void reset(int key) {
+        int start = AccountRegistry.mix(key) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int i = (start + probe) & mask;
+            long entry = table.get(i);
+            if (entry == 0) {
+                return;
+            }
+            if (keyOf(entry) == key) {
+                if ((entry & 0xFFFF) != 0) {
+                    table.compareAndSet(i, entry, entry & ~0xFFFFL);
+                }
+                return;
+            }
+        }
+    }
+
+    // Sliding-window estimate: all of this window's failures plus the part of the last window still inside the window
+    private boolean over(int current, int previous, long elapsed) {
+        return current * windowNanos + previous * (windowNanos - elapsed) >= limit * windowNanos;
+    }
+
+    private long find(int key) {
+        int start = AccountRegistry.mix(key) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            long entry = table.get((start + probe) & mask);
+            if (entry == 0 || keyOf(entry) == key) {
+                return entry;
+            }
+        }
+        return 0;
+    }
+
+    // Failures counted in the window we are in now
+    private static int current(long entry, long window) {
+        return stampOf(entry) == stamp(window) ? (int) (entry >>> 8 & 0xFF) : 0;
+    }
+
+    // Failures counted in the window before the current one
+    private static int previous(long entry, long window) {
+        long stamp = stampOf(entry);
+        if (stamp == stamp(window)) {
+            return (int) (entry & 0xFF);
+        }
+        return stamp == stamp(window - 1) ? (int) (entry >>> 8 & 0xFF) : 0;
+    }
+
+    // Window numbers are kept modulo 65535 and shifted to 1..65535, so a used entry is never all zeros.
+    // An entry idle for exactly 65535 windows would look current again; the cost is one stale count, not a lockout.
+    private static long stamp(long window) {
+        return window % 0xFFFF + 1;
+    }
+
+    private static long stampOf(long entry) {
+        return entry >>> 16 & 0xFFFF;
+    }
+
+    private static int keyOf(long entry) {
+        return (int) (entry >>> 32);
+    }
+}
@@ -0,0 +1,61 @@
+package atm;
+
+import java.io.PrintStream;
+
+// The lines one session shows its user, built in a reusable buffer: amounts go in through Money.appendTo and the
+// finished line is written to the stream as bytes, so printing a balance creates no String at all.
+// One per session; not thread-safe.
+final class Screen {
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final PrintStream out;
+    private final StringBuilder line = new StringBuilder(128);
+    private byte[] bytes = new byte[128];
+
+    Screen(PrintStream out) {
+        this.out = out;
+    }
+
+    Screen print(String text) {
+        line.append(text);
+        return this;
+    }
+
+    Screen print(char c) {
+        line.append(c);
+        return this;
+    }
+
+    Screen print(long number) {
+        line.append(number);
+        return this;
+    }
+
+    // "1234.05"
+    Screen money(long cents) {
+        Money.appendTo(line, cents);
+        return this;
+    }
+
+    // Writes the line built so far, ends it and starts a new one. The line and its separator go out in one write of
+    // bytes, since printing through the stream's encoder would wrap them in a new CharBuffer each time.
+    void println() {
+        line.append(LINE_SEPARATOR);
+        int length = line.length();
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            char c = line.charAt(i);
+            ascii = c < 0x80;
+            bytes[i] = (byte) c;
+        }
+        if (ascii) {
+            out.write(bytes, 0, length);
+        } else {
+            out.print(line); // Leave anything beyond ASCII to the stream's own encoding
+        }
+        line.setLength(0);
+    }
+}
@@ -0,0 +1,56 @@
+package atm;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits the account numbers between ledger shards, each its own process: account n belongs to shard n mod shardCount.
+// Every shard is started with the same list of addresses (where the shards talk to each other) and its own index in it.
+public final class ShardMap {
+    private final int localShard;
+    private final InetSocketAddress[] addresses;
+
+    public ShardMap(int localShard, List<InetSocketAddress> addresses) {
+        if (addresses.size() < 2 || addresses.size() > 64) {
+            throw new IllegalArgumentException("Between 2 and 64 shards are supported: " + addresses.size());
+        }
+        if (localShard < 0 || localShard >= addresses.size()) {
+            throw new IllegalArgumentException("Shard " + localShard + " is not in the list of " + addresses.size() + " shards");
+        }
+        this.localShard = localShard;
+        this.addresses = addresses.toArray(new InetSocketAddress[0]);
+    }
+
+    // Parses "host:port,host:port,..."
+    public static ShardMap parse(int localShard, String addressList) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String address : addressList.split(",")) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected host:port but got \"" + address + "\"");
+            }
+            addresses.add(new InetSocketAddress(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim())));
+        }
+        return new ShardMap(localShard, addresses);
+    }
+
+    public int localShard() {
+        return localShard;
+    }
+
+    public int shardCount() {
+        return addresses.length;
+    }
+
+    public int shardOf(int accountNumber) {
+        return Math.floorMod(accountNumber, addresses.length);
+    }
+
+    public boolean isLocal(int accountNumber) {
+        return shardOf(accountNumber) == localShard;
+    }
+
+    public InetSocketAddress address(int shard) {
+        return addresses[shard];
+    }
+}
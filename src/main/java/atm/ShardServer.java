@@ -0,0 +1,184 @@
+package atm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Answers the other shards, one line-based request at a time per connection:
+//   EXISTS <account>                        -> YES or NO
+//   CREDIT <shard> <first> <count> + lines  -> DONE <first> <refused mask in hex> (see CrossShardTransfers)
+//   TOTAL                                   -> TOTAL <sum of balances> <amount sent but not yet acknowledged>
+// Anything malformed is answered with ERROR <reason>. Every connection gets its own thread, which is fine here:
+// the only clients are the other shards, which keep a few long-lived connections each: one for their outbox and
+// up to four for EXISTS queries (see CrossShardTransfers).
+//
+// Connections are only taken from the hosts in the ShardMap, and a CREDIT only from the host of the shard it claims
+// to come from, so a stray client or a misconfigured shard cannot credit money. That is all the protection there is:
+// nothing is authenticated or encrypted and source addresses can be forged, so the shards must talk over a trusted
+// network only.
+public class ShardServer implements Closeable {
+    private final Ledger ledger;
+    private final ShardMap map;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connectionThreads = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "shard-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Thread acceptor;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    public ShardServer(Ledger ledger, ShardMap map) throws IOException {
+        this.ledger = ledger;
+        this.map = map;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true); // A restarted shard must get its port back at once
+        serverSocket.bind(map.address(map.localShard()), 256);
+        this.acceptor = new Thread(this::acceptLoop, "shard-server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Stops accepting connections and disconnects the other shards; they retry until this shard is back
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        try {
+            acceptor.join();
+            for (Socket connection : connections) {
+                connection.close();
+            }
+            connectionThreads.shutdown();
+            connectionThreads.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                return; // Server socket was closed
+            } catch (IOException e) {
+                System.out.println("Could not accept a shard connection: " + e.getMessage());
+                continue;
+            }
+            if (!isShardHost(socket.getInetAddress())) {
+                System.out.println("Refused a shard connection from " + socket.getInetAddress() + ", which is not in the shard list");
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closing a connection we never used
+                }
+                continue;
+            }
+            connections.add(socket); // Before the task is queued, so close() sees it even if it has not started
+            connectionThreads.execute(() -> serve(socket));
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String reply;
+                try {
+                    reply = answer(line, in, socket.getInetAddress());
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    reply = "ERROR " + e.getMessage();
+                }
+                out.write(reply);
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Connection dropped; the other shard resends whatever was not answered
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private String answer(String line, BufferedReader in, InetAddress peer) throws IOException {
+        String[] fields = line.split(" ");
+        switch (fields[0]) {
+            case "EXISTS" -> {
+                expectFields(fields, 2);
+                return ledger.find(Integer.parseInt(fields[1])) != null ? "YES" : "NO";
+            }
+            case "CREDIT" -> {
+                expectFields(fields, 4);
+                int shard = Integer.parseInt(fields[1]);
+                if (shard < 0 || shard >= map.shardCount() || !isHostOf(shard, peer)) {
+                    throw new IllegalArgumentException("Transfers from shard " + fields[1] + " cannot come from " + peer);
+                }
+                long first = Long.parseLong(fields[2]);
+                int count = Integer.parseInt(fields[3]);
+                if (count <= 0 || count > CrossShardTransfers.MAX_BATCH) {
+                    throw new IllegalArgumentException("Batch of " + count + " transfers");
+                }
+                int[] recipients = new int[count];
+                int[] senders = new int[count];
+                long[] amounts = new long[count];
+                for (int i = 0; i < count; i++) {
+                    String transfer = in.readLine();
+                    if (transfer == null) {
+                        throw new IOException("Batch cut short");
+                    }
+                    String[] transferFields = transfer.split(" ");
+                    expectFields(transferFields, 3);
+                    recipients[i] = Integer.parseInt(transferFields[0]);
+                    senders[i] = Integer.parseInt(transferFields[1]);
+                    amounts[i] = Long.parseLong(transferFields[2]);
+                }
+                long rejectedMask = ledger.receiveShardCredits(shard, first, recipients, senders, amounts);
+                return "DONE " + first + " " + Long.toHexString(rejectedMask);
+            }
+            case "TOTAL" -> {
+                Ledger.Total total = ledger.total(); // Both under one cut, so no transfer is counted twice or not at all
+                return "TOTAL " + total.balances + " " + total.pending;
+            }
+            default -> throw new IllegalArgumentException("Unknown request \"" + fields[0] + "\"");
+        }
+    }
+
+    private boolean isShardHost(InetAddress peer) {
+        for (int shard = 0; shard < map.shardCount(); shard++) {
+            if (isHostOf(shard, peer)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Any loopback address will do for a shard on this machine: "localhost" may resolve to either 127.0.0.1 or ::1
+    private boolean isHostOf(int shard, InetAddress peer) {
+        InetAddress host = map.address(shard).getAddress(); // Null if the name did not resolve at startup
+        return host != null && (host.equals(peer) || host.isLoopbackAddress() && peer.isLoopbackAddress());
+    }
+
+    private static void expectFields(String[] fields, int count) {
+        if (fields.length != count) {
+            throw new IllegalArgumentException("Expected " + count + " fields in \"" + String.join(" ", fields) + "\"");
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package atm;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+// Copy of every account at one point in the journal, stored as a fixed-width binary file.
+// Startup loads the snapshot and replays only the journal records after it,
+// so startup time depends on the number of accounts rather than on the whole transaction history.
+public final class Snapshot {
+    private static final int MAGIC = 0x41544D53; // "ATMS"
+    private static final int VERSION = 2;
+    private static final int PLAIN_PASSCODE_VERSION = 1; // Still read, so existing snapshots load after the upgrade
+    private static final int HEADER_SIZE = 32; // Magic, version, last sequence, account count, checksum, reserved
+    private static final int RECORD_SIZE = 12 + PasscodeHash.ENCODED_SIZE; // Account number, balance, passcode hash
+    private static final int PLAIN_PASSCODE_RECORD_SIZE = 16; // Account number, plain passcode, balance
+    private static final long MAX_MAPPING = 1 << 30; // Map large files a gigabyte at a time
+
+    private final long lastSequence;
+    private final int[] accountNumbers;
+    private final PasscodeHash[] passcodes;
+    private final long[] balances;
+
+    private Snapshot(long lastSequence, int[] accountNumbers, PasscodeHash[] passcodes, long[] balances) {
+        this.lastSequence = lastSequence;
+        this.accountNumbers = accountNumbers;
+        this.passcodes = passcodes;
+        this.balances = balances;
+    }
+
+    // Copies every account into primitive arrays. The caller must keep the ledger from changing meanwhile.
+    static Snapshot capture(AccountRegistry accounts, long lastSequence) {
+        int count = accounts.size();
+        int[] numbers = new int[count];
+        PasscodeHash[] passcodes = new PasscodeHash[count];
+        long[] balances = new long[count];
+        int[] index = {0};
+        accounts.forEach(account -> {
+            int i = index[0]++;
+            numbers[i] = account.getAccountNumber();
+            passcodes[i] = account.passcode();
+            balances[i] = account.getBalance();
+        });
+        return new Snapshot(lastSequence, numbers, passcodes, balances);
+    }
+
+    // Sequence number of the last journal record reflected in this snapshot
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    public int size() {
+        return accountNumbers.length;
+    }
+
+    // Recreates every account of the snapshot in the ledger
+    void restore(Ledger ledger) {
+        for (int i = 0; i < accountNumbers.length; i++) {
+            ledger.restoreAccount(accountNumbers[i], passcodes[i], balances[i]);
+        }
+    }
+
+    // Writes the snapshot to a temporary file through a memory mapping, then renames it over the old one and fsyncs
+    // the directory. A crash at any point leaves either the old or the new snapshot, never a half-written one, and once
+    // this returns the new one is there to stay.
+    public void write(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        long size = HEADER_SIZE + (long) RECORD_SIZE * accountNumbers.length;
+        CRC32C checksum = new CRC32C();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int record = 0;
+            for (long offset = HEADER_SIZE; offset < size; ) {
+                long length = Math.min(MAX_MAPPING - MAX_MAPPING % RECORD_SIZE, size - offset);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, offset, length);
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                for (int end = record + (int) (length / RECORD_SIZE); record < end; record++) {
+                    mapped.putInt(accountNumbers[record]).putLong(balances[record]);
+                    passcodes[record].writeTo(mapped);
+                }
+                mapped.flip();
+                checksum.update(mapped);
+                mapped.force();
+                offset += length;
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(lastSequence).putLong(accountNumbers.length)
+                    .putInt((int) checksum.getValue()).putInt(0);
+            header.force();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The rename itself is only durable once the directory is; until then a crash can bring back the old snapshot,
+        // and the ledger deletes the journal segments the new one covers as soon as this returns
+        try (FileChannel directory = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    // Maps and validates the snapshot file. Returns null if there is none.
+    public static Snapshot read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Snapshot " + path + " is truncated");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            int magic = header.getInt();
+            int version = header.getInt();
+            if (magic != MAGIC || (version != VERSION && version != PLAIN_PASSCODE_VERSION)) {
+                throw new IOException("Snapshot " + path + " has an unknown format");
+            }
+            int recordSize = version == VERSION ? RECORD_SIZE : PLAIN_PASSCODE_RECORD_SIZE;
+            long lastSequence = header.getLong();
+            long count = header.getLong();
+            int expected = header.getInt();
+            if (count < 0 || count > Integer.MAX_VALUE || size != HEADER_SIZE + count * recordSize) {
+                throw new IOException("Snapshot " + path + " is truncated");
+            }
+            int[] numbers = new int[(int) count];
+            PasscodeHash[] passcodes = new PasscodeHash[(int) count];
+            long[] balances = new long[(int) count];
+            CRC32C checksum = new CRC32C();
+            int record = 0;
+            for (long offset = HEADER_SIZE; offset < size; ) {
+                long length = Math.min(MAX_MAPPING - MAX_MAPPING % recordSize, size - offset);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                checksum.update(mapped.duplicate());
+                for (int end = record + (int) (length / recordSize); record < end; record++) {
+                    numbers[record] = mapped.getInt();
+                    if (version == VERSION) {
+                        balances[record] = mapped.getLong();
+                        passcodes[record] = PasscodeHash.readFrom(mapped, mapped.position());
+                        mapped.position(mapped.position() + PasscodeHash.ENCODED_SIZE);
+                    } else {
+                        passcodes[record] = PasscodeHash.unhashed(mapped.getInt());
+                        balances[record] = mapped.getLong();
+                    }
+                }
+                offset += length;
+            }
+            if ((int) checksum.getValue() != expected) {
+                throw new IOException("Snapshot " + path + " failed its checksum");
+            }
+            return new Snapshot(lastSequence, numbers, passcodes, balances);
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package atm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.CRC32C;
+
+// Dated record of every deposit, withdrawal and transfer, per account, for statements.
+//
+// Each account that has transacted owns one fixed-size block of off-heap memory holding its newest entries, found
+// through a table keyed by account number.
+// When the block is full it is copied into a spill buffer shared by all accounts, and the account starts a new one.
+// The spill buffer gets its place in the file when it is started, so every block knows its offset at once; the thread
+// that fills it writes it out in one sequential write, after leaving the account's monitor. Until then, reads of
+// those blocks are served from memory.
+// Every block on disk points back to the account's previous block, so reading an account's history
+// only touches that account's blocks, newest first, however many other accounts share the file.
+// Memory per account is one block (and nothing for accounts that never transact), regardless of how long the history is.
+//
+// Block layout (little-endian), identical in memory and on disk:
+//   [int account][int entry count][long offset of the previous block, or -1][int CRC32C][int reserved]
+//   then ENTRIES_PER_BLOCK x [long time millis][long amount in cents][int other account][int kind]
+//
+// Entries still in memory (in accounts' blocks or the spill buffer) are written out by flush(), which the ledger calls
+// with every snapshot, and on close. A crash loses the entries recorded since then, and replaying the journal does not
+// bring them back: journal records carry no time to date them with, and some of them may have reached this file
+// already. The balances themselves are safe in the journal; only statements can miss up to a snapshot interval.
+public class TransactionHistory implements Closeable {
+    public enum Kind {
+        DEPOSIT, WITHDRAWAL, TRANSFER_IN, TRANSFER_OUT
+    }
+
+    // One line of a statement
+    public static final class Entry {
+        public final long timeMillis;
+        public final Kind kind;
+        public final long amount; // Cents, always positive
+        public final int otherAccount; // Sender or recipient of a transfer, 0 otherwise
+
+        Entry(long timeMillis, Kind kind, long amount, int otherAccount) {
+            this.timeMillis = timeMillis;
+            this.kind = kind;
+            this.amount = amount;
+            this.otherAccount = otherAccount;
+        }
+
+        // As printed on a statement, e.g. "2024-05-01 14:03  Transfer to 456          -$25.00"
+        @Override
+        public String toString() {
+            String description = switch (kind) {
+                case DEPOSIT -> "Deposit";
+                case WITHDRAWAL -> "Withdrawal";
+                case TRANSFER_IN -> "Transfer from " + otherAccount;
+                case TRANSFER_OUT -> "Transfer to " + otherAccount;
+            };
+            String sign = kind == Kind.DEPOSIT || kind == Kind.TRANSFER_IN ? "+" : "-";
+            return String.format("%s  %-24s %s$%s", STATEMENT_TIME.format(Instant.ofEpochMilli(timeMillis)),
+                    description, sign, Money.format(amount));
+        }
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+    private static final DateTimeFormatter STATEMENT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    static final int ENTRIES_PER_BLOCK = 8;
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_SIZE = 24;
+    static final int BLOCK_SIZE = HEADER_SIZE + ENTRIES_PER_BLOCK * ENTRY_SIZE;
+    private static final int COUNT = 4; // Offsets of the header fields
+    private static final int PREVIOUS = 8;
+    private static final int CHECKSUM = 16;
+    private static final int BLOCKS_PER_SLAB = 4096; // Off-heap memory is allocated in slabs of this many blocks
+    private static final int BLOCKS_PER_WRITE = 1024; // Size of the spill buffer, about 220 KB
+    private static final int SPARE_BUFFERS = 4;
+
+    // A full spill buffer and where it goes in the file
+    private static final class Spilled {
+        final long offset;
+        final ByteBuffer blocks;
+
+        Spilled(long offset, ByteBuffer blocks) {
+            this.offset = offset;
+            this.blocks = blocks;
+        }
+    }
+
+    // Each account's block in memory, by account number. Open addressing like AccountRegistry, so the lookup on every
+    // append boxes nothing. A slot holds its block plus one, zero while empty, and the block is written after the key,
+    // so a reader that sees the block also sees its key.
+    private static final class BlockTable {
+        final int[] keys;
+        final AtomicIntegerArray blocks;
+        final int mask;
+
+        BlockTable(int capacity) {
+            this.keys = new int[capacity];
+            this.blocks = new AtomicIntegerArray(capacity);
+            this.mask = capacity - 1;
+        }
+    }
+
+    private final Path path;
+    private final Path indexPath;
+    private final FileChannel channel;
+    private final AccountRegistry accounts;
+    private final AtomicInteger nextBlock = new AtomicInteger();
+    private volatile BlockTable blockTable = new BlockTable(64); // Replaced, never changed in place, when it grows
+    private int blockTableSize; // Accounts in blockTable. Guarded by this.
+    private final Object spillLock = new Object();
+    private ByteBuffer spillBuffer = newSpillBuffer(); // Blocks bound for the file at spillStart. Guarded by spillLock.
+    private long spillStart; // Guarded by spillLock
+    private final List<Spilled> writing = new ArrayList<>(); // Taken from the spill buffer, not yet written. Guarded by spillLock.
+    private final ArrayDeque<ByteBuffer> spareBuffers = new ArrayDeque<>(); // Guarded by spillLock
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+    // Opens (or creates) the history file and finds the newest block of every account in the registry.
+    // Call once at startup, after the accounts have been recovered.
+    public TransactionHistory(Path path, AccountRegistry accounts) throws IOException {
+        this.path = path;
+        this.indexPath = path.resolveSibling(path.getFileName() + ".index");
+        this.accounts = accounts;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        long end = size - size % BLOCK_SIZE; // A block torn by a crash is overwritten
+        this.spillStart = end;
+        if (!loadIndex(end)) {
+            scan(end);
+        }
+    }
+
+    public void recordDeposit(ATMSimulator account, long amount) {
+        append(account, System.currentTimeMillis(), Kind.DEPOSIT, amount, 0);
+    }
+
+    public void recordWithdrawal(ATMSimulator account, long amount) {
+        append(account, System.currentTimeMillis(), Kind.WITHDRAWAL, amount, 0);
+    }
+
+    public void recordTransfer(ATMSimulator sender, ATMSimulator recipient, long amount) {
+        long now = System.currentTimeMillis(); // Both sides carry the same time
+        append(sender, now, Kind.TRANSFER_OUT, amount, recipient.getAccountNumber());
+        append(recipient, now, Kind.TRANSFER_IN, amount, sender.getAccountNumber());
+    }
+
+    // One side of a transfer whose other account is on another shard
+    public void recordTransferOut(ATMSimulator sender, int recipientNumber, long amount) {
+        append(sender, System.currentTimeMillis(), Kind.TRANSFER_OUT, amount, recipientNumber);
+    }
+
+    public void recordTransferIn(ATMSimulator recipient, int senderNumber, long amount) {
+        append(recipient, System.currentTimeMillis(), Kind.TRANSFER_IN, amount, senderNumber);
+    }
+
+    // The account's newest entries, newest first
+    public List<Entry> last(ATMSimulator account, int count) throws IOException {
+        return query(account, count, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // Every entry from `fromMillis` (inclusive) to `toMillis` (exclusive), newest first.
+    // Reads back only as many of the account's blocks as the range needs.
+    public List<Entry> between(ATMSimulator account, long fromMillis, long toMillis) throws IOException {
+        return query(account, Integer.MAX_VALUE, fromMillis, toMillis);
+    }
+
+    // Writes every entry still held in memory to the file
+    public void flush() throws IOException {
+        IOException[] failure = {null};
+        accounts.forEach(account -> {
+            Spilled full = null;
+            synchronized (account) {
+                int block = find(account.getAccountNumber());
+                if (block >= 0 && slab(block).getInt(position(block) + COUNT) > 0) {
+                    full = spill(block);
+                }
+            }
+            if (full != null) {
+                try {
+                    write(full);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        Spilled rest;
+        synchronized (spillLock) {
+            rest = spillBuffer.position() > 0 ? takeSpillBuffer() : null;
+        }
+        if (rest != null) {
+            write(rest);
+        }
+        synchronized (spillLock) {
+            while (!writing.isEmpty()) { // Buffers other threads filled and are still writing
+                try {
+                    spillLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while flushing the transaction history");
+                }
+            }
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        channel.force(false);
+    }
+
+    // Flushes, then saves where each account's newest block is so the next start need not scan the file
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            writeIndex();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // The account's monitor guards its block; the rest of the header is filled in when the block is spilled
+    private void append(ATMSimulator account, long now, Kind kind, long amount, int otherAccount) {
+        Spilled full = null;
+        synchronized (account) {
+            int block = blockOf(account);
+            ByteBuffer slab = slab(block);
+            int base = position(block);
+            if (slab.getInt(base + COUNT) == ENTRIES_PER_BLOCK) {
+                full = spill(block);
+            }
+            int count = slab.getInt(base + COUNT);
+            int entry = base + HEADER_SIZE + count * ENTRY_SIZE;
+            slab.putLong(entry, now).putLong(entry + 8, amount).putInt(entry + 16, otherAccount).putInt(entry + 20, kind.ordinal());
+            slab.putInt(base + COUNT, count + 1);
+        }
+        if (full != null) {
+            try {
+                write(full);
+            } catch (IOException e) {
+                // A statement missing a line is better than a deposit that fails after the money has moved
+                System.out.println("Could not write the transaction history " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Moves an account's block into the spill buffer and empties it. Caller holds the account's monitor.
+    // Returns the spill buffer if this block filled it, for the caller to write() once it has left the monitor.
+    private Spilled spill(int block) {
+        ByteBuffer slab = slab(block);
+        int base = position(block);
+        CRC32C checksum = new CRC32C();
+        checksum.update(slab.slice(base, CHECKSUM));
+        checksum.update(slab.slice(base + HEADER_SIZE, BLOCK_SIZE - HEADER_SIZE));
+        slab.putInt(base + CHECKSUM, (int) checksum.getValue());
+        long offset;
+        Spilled full = null;
+        synchronized (spillLock) {
+            offset = spillStart + spillBuffer.position();
+            spillBuffer.put(spillBuffer.position(), slab, base, BLOCK_SIZE).position(spillBuffer.position() + BLOCK_SIZE);
+            if (!spillBuffer.hasRemaining()) {
+                full = takeSpillBuffer();
+            }
+        }
+        slab.putLong(base + PREVIOUS, offset).putInt(base + COUNT, 0);
+        return full;
+    }
+
+    // Takes the blocks collected so far for writing and starts a new spill buffer behind them. Caller holds spillLock.
+    private Spilled takeSpillBuffer() {
+        ByteBuffer blocks = spillBuffer.flip();
+        Spilled taken = new Spilled(spillStart, blocks);
+        writing.add(taken);
+        spillStart += blocks.limit();
+        ByteBuffer spare = spareBuffers.poll();
+        spillBuffer = spare != null ? spare.clear() : newSpillBuffer();
+        return taken;
+    }
+
+    // Writes blocks taken from the spill buffer at their place in the file. If this fails, the accounts' older
+    // blocks cannot be read back and their statements end there.
+    private void write(Spilled spilled) throws IOException {
+        ByteBuffer blocks = spilled.blocks;
+        try {
+            while (blocks.hasRemaining()) {
+                channel.write(blocks, spilled.offset + blocks.position());
+            }
+        } finally {
+            synchronized (spillLock) {
+                writing.remove(spilled);
+                if (spareBuffers.size() < SPARE_BUFFERS) {
+                    spareBuffers.add(blocks);
+                }
+                spillLock.notifyAll();
+            }
+        }
+    }
+
+    private static ByteBuffer newSpillBuffer() {
+        return ByteBuffer.allocateDirect(BLOCKS_PER_WRITE * BLOCK_SIZE);
+    }
+
+    // Reads the block at `offset` from memory if it has not been written yet, otherwise from the file
+    private void readBlock(long offset, ByteBuffer block) throws IOException {
+        synchronized (spillLock) {
+            if (offset >= spillStart) {
+                block.put(0, spillBuffer, (int) (offset - spillStart), BLOCK_SIZE);
+                return;
+            }
+            for (Spilled spilled : writing) {
+                if (offset >= spilled.offset && offset < spilled.offset + spilled.blocks.limit()) {
+                    block.put(0, spilled.blocks, (int) (offset - spilled.offset), BLOCK_SIZE);
+                    return;
+                }
+            }
+        }
+        // Not in memory, so it has been written: buffers leave `writing` only once their write is over
+        block.clear();
+        while (block.hasRemaining()) {
+            if (channel.read(block, offset + block.position()) < 0) {
+                throw new IOException("History block at " + offset + " is cut short");
+            }
+        }
+    }
+
+    private List<Entry> query(ATMSimulator account, int limit, long fromMillis, long toMillis) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        synchronized (account) {
+            int memoryBlock = find(account.getAccountNumber());
+            if (memoryBlock < 0) {
+                return entries;
+            }
+            // Copy, so the file can be read without holding the lock
+            block.put(0, slab(memoryBlock), position(memoryBlock), BLOCK_SIZE);
+        }
+        // Spilled blocks never change, so following the chain needs no account monitor
+        while (collect(block, entries, limit, fromMillis, toMillis)) {
+            long previous = block.getLong(PREVIOUS);
+            if (previous < 0) {
+                break;
+            }
+            readBlock(previous, block);
+            if (!isValid(block) || block.getInt(0) != account.getAccountNumber()) {
+                throw new IOException("History block at " + previous + " is damaged");
+            }
+        }
+        return entries;
+    }
+
+    // Adds the block's entries in the range, newest first. Returns false once older blocks cannot matter.
+    private static boolean collect(ByteBuffer block, List<Entry> entries, int limit, long fromMillis, long toMillis) {
+        for (int i = block.getInt(COUNT) - 1; i >= 0; i--) {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            long time = block.getLong(entry);
+            if (time < fromMillis) {
+                return false;
+            }
+            if (time < toMillis) {
+                entries.add(new Entry(time, KINDS[block.getInt(entry + 20)], block.getLong(entry + 8), block.getInt(entry + 16)));
+                if (entries.size() >= limit) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValid(ByteBuffer block) {
+        int count = block.getInt(COUNT);
+        if (count <= 0 || count > ENTRIES_PER_BLOCK) {
+            return false;
+        }
+        CRC32C checksum = new CRC32C();
+        checksum.update(block.slice(0, CHECKSUM));
+        checksum.update(block.slice(HEADER_SIZE, BLOCK_SIZE - HEADER_SIZE));
+        return (int) checksum.getValue() == block.getInt(CHECKSUM);
+    }
+
+    // The account's block in memory, allocated on its first transaction. Caller holds the account's monitor.
+    private int blockOf(ATMSimulator account) {
+        int block = find(account.getAccountNumber());
+        if (block < 0) {
+            block = nextBlock.getAndIncrement();
+            ByteBuffer slab = slab(block);
+            int base = position(block);
+            slab.putInt(base, account.getAccountNumber()).putInt(base + COUNT, 0).putLong(base + PREVIOUS, -1);
+            publish(account.getAccountNumber(), block);
+        }
+        return block;
+    }
+
+    // The account's block in memory, or -1 if it has none yet. Takes no lock.
+    private int find(int accountNumber) {
+        BlockTable t = blockTable;
+        for (int i = AccountRegistry.mix(accountNumber) & t.mask; ; i = (i + 1) & t.mask) {
+            int block = t.blocks.get(i) - 1;
+            if (block < 0) {
+                return -1;
+            }
+            if (t.keys[i] == accountNumber) {
+                return block;
+            }
+        }
+    }
+
+    private synchronized void publish(int accountNumber, int block) {
+        BlockTable t = blockTable;
+        if (++blockTableSize > t.keys.length / 2) {
+            BlockTable bigger = new BlockTable(t.keys.length << 1);
+            for (int i = 0; i < t.keys.length; i++) {
+                int existing = t.blocks.get(i);
+                if (existing != 0) {
+                    insert(bigger, t.keys[i], existing);
+                }
+            }
+            blockTable = bigger; // Published before the new block goes in, as AccountRegistry does
+            t = bigger;
+        }
+        insert(t, accountNumber, block + 1);
+    }
+
+    private static void insert(BlockTable t, int accountNumber, int blockPlusOne) {
+        int i = AccountRegistry.mix(accountNumber) & t.mask;
+        while (t.blocks.get(i) != 0) {
+            i = (i + 1) & t.mask;
+        }
+        t.keys[i] = accountNumber;
+        t.blocks.set(i, blockPlusOne);
+    }
+
+    private ByteBuffer slab(int block) {
+        int index = block / BLOCKS_PER_SLAB;
+        ByteBuffer[] current = slabs;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        synchronized (this) {
+            current = slabs;
+            if (index >= current.length) {
+                current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+            }
+            if (current[index] == null) {
+                current[index] = ByteBuffer.allocateDirect(BLOCKS_PER_SLAB * BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            slabs = current;
+            return current[index];
+        }
+    }
+
+    private static int position(int block) {
+        return block % BLOCKS_PER_SLAB * BLOCK_SIZE;
+    }
+
+    // Points the account at its newest block on disk
+    private void link(int accountNumber, long offset) {
+        ATMSimulator account = accounts.get(accountNumber);
+        if (account != null) {
+            int block = blockOf(account);
+            slab(block).putLong(position(block) + PREVIOUS, offset);
+        }
+    }
+
+    // Offset of the account's newest block on disk, or -1 if it has none
+    private long head(int accountNumber) {
+        int block = find(accountNumber);
+        return block < 0 ? -1 : slab(block).getLong(position(block) + PREVIOUS);
+    }
+
+    // Index: [long length of the history file it describes][int count] then count x [int account][long offset]
+    private void writeIndex() throws IOException {
+        Path temporary = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        List<long[]> heads = new ArrayList<>();
+        accounts.forEach(account -> {
+            long offset = head(account.getAccountNumber());
+            if (offset >= 0) {
+                heads.add(new long[]{account.getAccountNumber(), offset});
+            }
+        });
+        ByteBuffer index = ByteBuffer.allocate(12 + heads.size() * 12).order(ByteOrder.LITTLE_ENDIAN);
+        long fileLength;
+        synchronized (spillLock) {
+            fileLength = spillStart + spillBuffer.position();
+        }
+        index.putLong(fileLength).putInt(heads.size());
+        for (long[] head : heads) {
+            index.putInt((int) head[0]).putLong(head[1]);
+        }
+        index.flip();
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (index.hasRemaining()) {
+                out.write(index);
+            }
+            out.force(false);
+        }
+        Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Uses the index written at the last clean shutdown, unless the file has changed since
+    private boolean loadIndex(long fileLength) throws IOException {
+        if (!Files.exists(indexPath)) {
+            return false;
+        }
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath)).order(ByteOrder.LITTLE_ENDIAN);
+        if (index.remaining() < 12 || index.getLong() != fileLength) {
+            return false;
+        }
+        int count = index.getInt();
+        if (index.remaining() != count * 12L) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            link(index.getInt(), index.getLong());
+        }
+        return true;
+    }
+
+    // After a crash: reads the whole file once; the newest block of each account is its last valid one that follows on
+    // from the one before. A spill buffer can be written after the one before it in the file, so a crash can leave a
+    // hole of unwritten blocks, and the chain of an account with a block in the hole ends just before it.
+    private void scan(long fileLength) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(BLOCK_SIZE * 4096).order(ByteOrder.LITTLE_ENDIAN);
+        for (long offset = 0; offset < fileLength; ) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), fileLength - offset));
+            while (chunk.hasRemaining() && channel.read(chunk, offset + chunk.position()) >= 0) {
+                // Keep reading until the chunk is full
+            }
+            for (int at = 0; at + BLOCK_SIZE <= chunk.position(); at += BLOCK_SIZE) {
+                ByteBuffer block = chunk.slice(at, BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                // Blocks reserved but never written read as zeros, so they are not valid
+                if (isValid(block) && block.getLong(PREVIOUS) == head(block.getInt(0))) {
+                    link(block.getInt(0), offset + at);
+                }
+            }
+            offset += chunk.position();
+        }
+    }
+}
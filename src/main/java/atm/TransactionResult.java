@@ -0,0 +1,14 @@
+package atm;
+
+// Outcome of an operation on the ledger. Operations report this instead of printing,
+// so the same engine can be driven by the menu or by many threads at once.
+public enum TransactionResult {
+    SUCCESS,
+    INVALID_AMOUNT,      // Amount is zero or negative
+    INSUFFICIENT_FUNDS,  // Balance is lower than the amount to withdraw or transfer
+    INVALID_RECIPIENT,   // Recipient account does not exist
+    SELF_TRANSFER,       // Sender and recipient are the same account
+    BALANCE_OVERFLOW,    // Crediting the amount would exceed the largest balance a long can hold
+    UNKNOWN_ACCOUNT,     // Account to operate on does not exist
+    SHARD_UNAVAILABLE    // Recipient lives on another shard that cannot be reached right now
+}
@@ -0,0 +1,119 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+// Open addressing must find every account through growth and collisions, and stop at the first empty slot for
+// numbers it does not hold
+class AccountRegistryTest {
+    @Test
+    void growsAndKeepsEveryAccount() {
+        AccountRegistry registry = new AccountRegistry(); // Sixteen slots to start with
+        List<ATMSimulator> added = new ArrayList<>();
+        for (int number = 1; number <= 10_000; number++) {
+            ATMSimulator account = account(number * 7919); // Spread out, not just sequential
+            assertNull(registry.putIfAbsent(account));
+            added.add(account);
+        }
+        assertEquals(10_000, registry.size());
+        for (ATMSimulator account : added) {
+            assertSame(account, registry.get(account.getAccountNumber()));
+        }
+        AtomicInteger visited = new AtomicInteger();
+        registry.forEach(account -> visited.incrementAndGet());
+        assertEquals(10_000, visited.get());
+    }
+
+    // Numbers that hash to the same slot probe past each other, in both orders of insertion
+    @Test
+    void collidingNumbersAreBothFound() {
+        int[] colliding = new int[4];
+        int found = 0;
+        int slot = AccountRegistry.mix(1) & 15;
+        for (int number = 1; found < colliding.length; number++) {
+            if ((AccountRegistry.mix(number) & 15) == slot) {
+                colliding[found++] = number;
+            }
+        }
+        AccountRegistry registry = new AccountRegistry(4); // Stays at sixteen slots with four accounts
+        for (int number : colliding) {
+            assertNull(registry.putIfAbsent(account(number)));
+        }
+        for (int number : colliding) {
+            assertEquals(number, registry.get(number).getAccountNumber());
+        }
+        assertFalse(registry.contains(findCollision(slot, colliding[colliding.length - 1])),
+                "a colliding number that was never added");
+    }
+
+    @Test
+    void missingNumbersAreNotFound() {
+        AccountRegistry registry = new AccountRegistry();
+        assertNull(registry.get(1));
+        for (int number = 1; number <= 100; number++) {
+            registry.putIfAbsent(account(number));
+        }
+        for (int number : new int[] {0, 101, -1, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            assertNull(registry.get(number));
+            assertFalse(registry.contains(number));
+        }
+    }
+
+    @Test
+    void duplicateNumberKeepsTheFirstAccount() {
+        AccountRegistry registry = new AccountRegistry();
+        ATMSimulator first = account(42);
+        assertNull(registry.putIfAbsent(first));
+        assertSame(first, registry.putIfAbsent(account(42)));
+        assertSame(first, registry.get(42));
+        assertEquals(1, registry.size());
+    }
+
+    // Lookups take no lock, so they must find accounts added earlier while the table is being replaced
+    @Test
+    void lookupsDuringGrowthFindEarlierAccounts() throws InterruptedException {
+        AccountRegistry registry = new AccountRegistry();
+        AtomicInteger added = new AtomicInteger();
+        AtomicReference<String> missing = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (added.get() < 100_000 && missing.get() == null) {
+                int upTo = added.get();
+                for (int number = Math.max(1, upTo - 64); number <= upTo; number++) {
+                    if (registry.get(number) == null) {
+                        missing.set("account " + number + " of " + upTo);
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int number = 1; number <= 100_000; number++) {
+            registry.putIfAbsent(account(number));
+            added.set(number);
+        }
+        reader.join();
+        assertNull(missing.get());
+        assertTrue(registry.contains(100_000));
+    }
+
+    private static int findCollision(int slot, int after) {
+        for (int number = after + 1; ; number++) {
+            if ((AccountRegistry.mix(number) & 15) == slot) {
+                return number;
+            }
+        }
+    }
+
+    private static ATMSimulator account(int number) {
+        return new ATMSimulator(null, number, PasscodeHash.unhashed(0));
+    }
+}
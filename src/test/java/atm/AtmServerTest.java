@@ -0,0 +1,152 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+// Scripted clients on localhost: each one types a whole session at once, closes its side and reads the answers
+class AtmServerTest {
+    private static final int CLIENTS = 50;
+    private static final int IDLE_CONNECTIONS = 2_000;
+
+    @Test
+    void concurrentClientsShareOneLedger() throws Exception {
+        Ledger ledger = TestLedgers.newLedger();
+        ATMSimulator pot = ledger.createAccount(1, 1);
+        try (AtmServer server = new AtmServer(ledger, 0, List.of(), 4)) {
+            ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+            List<Future<String>> transcripts = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                int account = 1_000 + i;
+                transcripts.add(clients.submit(() -> converse(server.port(),
+                        "1\n" + account + "\n42\n"     // Create the account
+                        + "2 " + account + " 42\n"     // Log in, answers on one line
+                        + "2\n100\n"                   // Deposit $100
+                        + "4\n1\n10.50\n"              // Transfer $10.50 to the shared account
+                        + "oops\n"                     // Rejected, back to the account menu
+                        + "1\n7\n3\n")));              // Balance, log out, exit
+            }
+            for (int i = 0; i < CLIENTS; i++) {
+                String transcript = transcripts.get(i).get();
+                assertTrue(transcript.contains("New account created successfully!"), transcript);
+                assertTrue(transcript.contains("You have successfully logged in!"), transcript);
+                assertTrue(transcript.contains("You have transferred $10.50 to account 1"), transcript);
+                assertTrue(transcript.contains("Invalid input. Please enter a valid numeric value."), transcript);
+                assertTrue(transcript.contains("Your balance is: $89.50"), transcript);
+                assertTrue(transcript.endsWith("Exiting the program...\n\n"), transcript);
+                assertEquals(8950, ledger.balance(ledger.find(1_000 + i)));
+            }
+            clients.shutdown();
+        }
+        assertEquals(CLIENTS * 1050L, ledger.balance(pot));
+    }
+
+    // A client that reads slowly keeps output pending, so the selector flushes it while a worker is still printing
+    // answers to later lines; none of those answers may be lost or reordered
+    @Test
+    void slowReaderGetsEveryAnswer() throws Exception {
+        Ledger ledger = TestLedgers.newLedger();
+        ledger.createAccount(7, 7);
+        int checks = 2_000;
+        StringBuilder script = new StringBuilder("2\n7\n7\n");
+        for (int i = 0; i < checks; i++) {
+            script.append("1\n");
+        }
+        script.append("7\n3\n");
+        try (AtmServer server = new AtmServer(ledger, 0, List.of(), 4);
+             Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(1024);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()));
+            OutputStream out = socket.getOutputStream();
+            Thread writer = new Thread(() -> {
+                try {
+                    out.write(script.toString().replace("\n", System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    // The assertions below report what was missing
+                }
+            });
+            writer.start();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] chunk = new byte[64];
+            for (int n; (n = in.read(chunk)) >= 0; ) {
+                received.write(chunk, 0, n);
+                if (received.size() % 4096 < 64) {
+                    Thread.sleep(1); // Read slowly, so the server's writes keep hitting a full socket
+                }
+            }
+            writer.join();
+            String transcript = received.toString(StandardCharsets.US_ASCII).replace(System.lineSeparator(), "\n");
+            assertEquals(checks, transcript.split("Your balance is: \\$0\\.00\n", -1).length - 1);
+            assertTrue(transcript.endsWith("Exiting the program...\n\n"), transcript.substring(transcript.length() - 200));
+        }
+    }
+
+    // Connections waiting for their users hold no thread, and closing the server disconnects every one of them
+    @Test
+    void idleConnectionsHoldNoThreads() throws Exception {
+        Ledger ledger = TestLedgers.newLedger();
+        ledger.createAccount(7, 7);
+        List<Socket> idle = new ArrayList<>();
+        try (AtmServer server = new AtmServer(ledger, 0, List.of(), 4)) {
+            int threadsBefore = Thread.activeCount();
+            for (int i = 0; i < IDLE_CONNECTIONS; i++) {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port());
+                idle.add(socket);
+                readUntil(socket.getInputStream(), "**********************************\n", 2); // The whole main menu
+            }
+            assertTrue(Thread.activeCount() - threadsBefore < 10, "threads grew by " + (Thread.activeCount() - threadsBefore));
+
+            // Everyone else keeps waiting while one client is served
+            String transcript = converse(server.port(), "2\n7\n7\n1\n7\n3\n");
+            assertTrue(transcript.contains("Your balance is: $0.00"), transcript);
+        }
+        for (Socket socket : idle) {
+            assertEquals(-1, socket.getInputStream().read());
+            socket.close();
+        }
+    }
+
+    // Sends the script, closes the sending side and returns everything the server said until it hung up
+    private static String converse(int port, String script) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(script.replace("\n", System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII)
+                    .replace(System.lineSeparator(), "\n");
+        }
+    }
+
+    // Reads until `marker` has been seen `times` times
+    private static void readUntil(InputStream in, String marker, int times) throws IOException {
+        StringBuilder text = new StringBuilder();
+        int seen = 0;
+        while (seen < times) {
+            int c = in.read();
+            if (c < 0) {
+                throw new IOException("connection closed after " + text);
+            }
+            text.append((char) c);
+            if (text.length() >= marker.length() && text.lastIndexOf(marker) == text.length() - marker.length()) {
+                seen++;
+            }
+        }
+    }
+}
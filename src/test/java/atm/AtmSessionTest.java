@@ -0,0 +1,46 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+// Everything the menu turns down must show up in the metrics, as it does when the ledger turns it down
+class AtmSessionTest {
+    @Test
+    void menuRejectionsAreCounted() {
+        Ledger ledger = TestLedgers.newLedger();
+        ledger.createAccount(1, 11);
+        ledger.createAccount(2, 22);
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        AtmSession session = new AtmSession(ledger, AtmSession.newInvalidInputLimiter(1),
+                new PrintStream(printed, true, StandardCharsets.UTF_8), null);
+        session.start();
+        for (String line : new String[] {
+                "2 1 11",     // Log in
+                "4 999",      // Transfer to an account that does not exist
+                "4 1",        // Transfer to oneself
+                "2 0",        // Deposit nothing
+                "3 -5",       // Withdraw a negative amount
+                "2 10 4 2 1", // A good deposit and transfer, for contrast
+                "7 3"}) {
+            session.onLine(line);
+        }
+        String transcript = printed.toString(StandardCharsets.UTF_8);
+        assertTrue(session.isFinished(), transcript);
+        assertTrue(transcript.contains("Invalid recipient account number. Please try again."), transcript);
+        assertTrue(transcript.contains("You cannot transfer money to yourself."), transcript);
+        assertTrue(transcript.contains("Invalid deposit amount. Please enter a positive value."), transcript);
+        assertTrue(transcript.contains("Invalid withdrawal amount. Please enter a positive value."), transcript);
+
+        Metrics metrics = ledger.metrics();
+        assertEquals(1, metrics.rejections(Metrics.Rejection.INVALID_RECIPIENT));
+        assertEquals(1, metrics.rejections(Metrics.Rejection.SELF_TRANSFER));
+        assertEquals(2, metrics.rejections(Metrics.Rejection.INVALID_AMOUNT));
+        assertEquals(1, metrics.latency(Metrics.Operation.TRANSFER).count());
+    }
+}
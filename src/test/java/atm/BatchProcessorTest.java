@@ -0,0 +1,102 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A batch must settle exactly as if its lines ran one after another, however many workers share the work
+class BatchProcessorTest {
+    private static final int[] WORKER_COUNTS = {2, 3, 4, 5, 8};
+
+    @TempDir
+    Path directory;
+
+    // Money moved to 456 is withdrawn from it on the next line. Both accounts land on different workers for most
+    // worker counts, so without ordering the withdrawal would sometimes run before the credit and be rejected.
+    @Test
+    void creditRunsBeforeTheRecipientsLaterLines() throws IOException {
+        Path input = directory.resolve("pairs.csv");
+        try (Writer out = Files.newBufferedWriter(input)) {
+            out.write("deposit,123,100000\n");
+            for (int i = 0; i < 200_000; i++) {
+                out.write("transfer,123,456,0.01\nwithdraw,456,0.01\n");
+            }
+        }
+        Outcome sequential = run(input, 1, 123, 456);
+        assertEquals(0, sequential.summary.rejected);
+        for (int workers : WORKER_COUNTS) {
+            Outcome parallel = run(input, workers, 123, 456);
+            assertEquals(0, parallel.summary.rejected, workers + " workers");
+            assertArrayEquals(sequential.balances, parallel.balances, workers + " workers");
+        }
+    }
+
+    // Random deposits, withdrawals and transfers over a few accounts, many of them refused for lack of money, plus
+    // unknown accounts and malformed lines: every worker count must reject the same lines and end on the same balances
+    @Test
+    void randomFileMatchesASequentialRun() throws IOException {
+        int[] accounts = new int[40];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = i + 1;
+        }
+        Path input = directory.resolve("random.csv");
+        SplittableRandom random = new SplittableRandom(7);
+        try (Writer out = Files.newBufferedWriter(input)) {
+            for (int i = 0; i < 300_000; i++) {
+                int account = accounts[random.nextInt(accounts.length)];
+                int amount = 1 + random.nextInt(5_000);
+                switch (random.nextInt(10)) {
+                    case 0, 1 -> out.write("deposit," + account + "," + amount + "\n");
+                    case 2, 3 -> out.write("withdraw," + account + "," + amount + "\n");
+                    case 4 -> out.write("transfer," + account + ",999," + amount + "\n"); // Unknown recipient
+                    case 5 -> out.write("withdraw,oops\n");
+                    default -> out.write("transfer," + account + "," + accounts[random.nextInt(accounts.length)] + "," + amount + "\n");
+                }
+            }
+        }
+        Outcome sequential = run(input, 1, accounts);
+        for (int workers : WORKER_COUNTS) {
+            Outcome parallel = run(input, workers, accounts);
+            assertEquals(sequential.summary.rejected, parallel.summary.rejected, workers + " workers");
+            assertEquals(sequential.rejections, parallel.rejections, workers + " workers");
+            assertArrayEquals(sequential.balances, parallel.balances, workers + " workers");
+        }
+    }
+
+    private static final class Outcome {
+        final BatchProcessor.Summary summary;
+        final List<String> rejections; // The report without its summary line, which holds the timing
+        final long[] balances;
+
+        Outcome(BatchProcessor.Summary summary, List<String> rejections, long[] balances) {
+            this.summary = summary;
+            this.rejections = rejections;
+            this.balances = balances;
+        }
+    }
+
+    // Runs the file against fresh accounts and returns what it left behind
+    private Outcome run(Path input, int workers, int... accountNumbers) throws IOException {
+        Ledger ledger = TestLedgers.newLedger();
+        for (int number : accountNumbers) {
+            ledger.createAccount(number, 1);
+        }
+        Path report = directory.resolve("report-" + workers);
+        BatchProcessor.Summary summary = new BatchProcessor(ledger, workers).run(input, report);
+        List<String> lines = Files.readAllLines(report);
+        long[] balances = new long[accountNumbers.length];
+        for (int i = 0; i < accountNumbers.length; i++) {
+            balances[i] = ledger.balance(ledger.find(accountNumbers[i]));
+        }
+        return new Outcome(summary, lines.subList(1, lines.size()), balances);
+    }
+}
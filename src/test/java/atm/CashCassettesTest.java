@@ -0,0 +1,95 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+// Reserved notes stay in the machine until committed and go back to other withdrawals when released, including
+// when the ledger turns the withdrawal down after the notes were set aside
+class CashCassettesTest {
+    private final CashCassettes.Loadout loadout = CashCassettes.Loadout.parse("20x10,10x5");
+    private final CashCassettes cash = new CashCassettes("ATM-1", loadout.planner(), loadout);
+
+    @Test
+    void reserveCommitAndRelease() {
+        CashCassettes.Dispense first = cash.reserve(dollars(50));
+        assertNotNull(first);
+        assertEquals("2 x $20, 1 x $10", first.toString());
+        assertEquals(10, cash.loaded(0), "reserved notes are still in the machine");
+
+        CashCassettes.Dispense second = cash.reserve(dollars(160)); // All eight $20s left
+        assertNotNull(second);
+        assertNull(cash.reserve(dollars(50)), "only four $10s are not promised");
+        second.release();
+        assertNotNull(cash.reserve(dollars(50)), "released notes can be promised again");
+
+        first.commit();
+        assertEquals(8, cash.loaded(0));
+        assertEquals(4, cash.loaded(1));
+        assertEquals(dollars(200), cash.cash());
+        assertThrows(IllegalStateException.class, first::release);
+        assertThrows(IllegalStateException.class, second::commit);
+    }
+
+    @Test
+    void failedWithdrawalPutsTheNotesBack() {
+        Ledger ledger = TestLedgers.newLedger();
+        ATMSimulator account = ledger.createAccount(1, 1);
+        ledger.deposit(account, dollars(30));
+        long before = cash.cash();
+
+        String transcript = withdraw(account, dollars(100)); // The notes are there but the money is not
+        assertTrue(transcript.contains("Invalid amount. Please try again."), transcript);
+        assertEquals(before, cash.cash());
+        assertEquals(dollars(30), ledger.balance(account));
+        CashCassettes.Dispense all = cash.reserve(before); // Nothing is still held for the failed withdrawal
+        assertNotNull(all);
+        all.release();
+
+        transcript = withdraw(account, dollars(30));
+        assertTrue(transcript.contains("Please take your cash: 1 x $20, 1 x $10."), transcript);
+        assertEquals(before - dollars(30), cash.cash());
+        assertEquals(0, ledger.balance(account));
+    }
+
+    @Test
+    void amountsTheMachineCannotPay() {
+        Ledger ledger = TestLedgers.newLedger();
+        ATMSimulator account = ledger.createAccount(1, 1);
+        ledger.deposit(account, dollars(1_000));
+
+        String transcript = withdraw(account, dollars(15));
+        assertTrue(transcript.contains("This ATM cannot dispense $15.00."), transcript);
+        transcript = withdraw(account, dollars(260)); // Dispensable, but more than the machine holds
+        assertTrue(transcript.contains("This ATM does not have the notes for $260.00 right now."), transcript);
+        assertEquals(dollars(1_000), ledger.balance(account), "nothing is debited for cash the machine lacks");
+
+        // Ten $20s would empty that cassette, so two of them are made up from $10s; then the machine runs short
+        transcript = withdraw(account, dollars(200));
+        assertTrue(transcript.contains("Please take your cash: 8 x $20, 4 x $10."), transcript);
+        transcript = withdraw(account, dollars(20));
+        assertTrue(transcript.contains("Please take your cash: 1 x $20."), transcript);
+        transcript = withdraw(account, dollars(40));
+        assertTrue(transcript.contains("does not have the notes"), transcript);
+        assertEquals(dollars(30), cash.cash());
+        assertEquals(dollars(780), ledger.balance(account));
+    }
+
+    private String withdraw(ATMSimulator account, long amount) {
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        account.withdraw(amount, cash, new Screen(new PrintStream(printed, true, StandardCharsets.UTF_8)));
+        return printed.toString(StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n");
+    }
+
+    private static long dollars(long dollars) {
+        return dollars * Money.CENTS_PER_DOLLAR;
+    }
+}
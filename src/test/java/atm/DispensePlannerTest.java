@@ -0,0 +1,83 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+// The planner's preference order over the listed combinations, and the search it falls back on once the cassettes
+// are too depleted for any of them
+class DispensePlannerTest {
+    private static final long[] NOTES = {dollars(100), dollars(50), dollars(20), dollars(10), dollars(5)};
+    private static final int[] FULL = {500, 500, 500, 500, 500};
+
+    private final DispensePlanner planner = new DispensePlanner(NOTES, CashCassettes.MAX_WITHDRAWAL, CashCassettes.MAX_NOTES);
+
+    @Test
+    void fewestNotesFromFullCassettes() {
+        assertArrayEquals(new int[] {1, 1, 1, 1, 0}, planner.plan(dollars(180), FULL, FULL));
+        assertArrayEquals(new int[] {0, 1, 0, 1, 0}, planner.plan(dollars(60), FULL, FULL)); // Not three $20s
+        assertArrayEquals(new int[] {10, 0, 0, 0, 0}, planner.plan(dollars(1000), FULL, FULL));
+    }
+
+    // Sparing a cassette near its low-water mark comes before using fewer notes
+    @Test
+    void cassettesRunningLowAreSpared() {
+        int[] available = {500, 2, 500, 500, 500};
+        int[] capacity = {500, 10, 500, 500, 500};
+        assertArrayEquals(new int[] {0, 0, 3, 0, 0}, planner.plan(dollars(60), available, capacity));
+        // Unless every combination has to draw on it
+        DispensePlanner fifties = new DispensePlanner(new long[] {dollars(50)}, dollars(200), 10);
+        assertArrayEquals(new int[] {2}, fifties.plan(dollars(100), new int[] {2}, new int[] {10}));
+    }
+
+    // With as many notes either way, the emptiest cassette it touches is left as full as possible
+    @Test
+    void equalNoteCountsLeaveTheFullestCassettes() {
+        DispensePlanner thirties = new DispensePlanner(new long[] {dollars(30), dollars(20), dollars(10)}, dollars(200), 10);
+        int[] capacity = {10, 10, 10};
+        assertArrayEquals(new int[] {0, 2, 0}, thirties.plan(dollars(40), new int[] {5, 10, 10}, capacity));
+        assertArrayEquals(new int[] {1, 0, 1}, thirties.plan(dollars(40), new int[] {10, 5, 10}, capacity));
+    }
+
+    // Forty $5 notes is the longest way to make $200, far down a list that only keeps the shortest combinations
+    @Test
+    void depletedCassettesFallBackToSearch() {
+        assertArrayEquals(new int[] {0, 0, 0, 0, 40}, planner.plan(dollars(200), new int[] {0, 0, 0, 0, 40}, FULL));
+        assertArrayEquals(new int[] {0, 1, 0, 5, 20}, planner.plan(dollars(200), new int[] {0, 1, 0, 5, 40}, FULL));
+        assertNull(planner.plan(dollars(200), new int[] {0, 0, 0, 0, 39}, FULL));
+        assertNull(planner.plan(dollars(200), new int[] {0, 0, 0, 1, 37}, FULL), "needs 41 notes");
+    }
+
+    @Test
+    void amountsNoNotesCanMake() {
+        assertTrue(planner.isDispensable(dollars(5)));
+        assertTrue(planner.isDispensable(CashCassettes.MAX_WITHDRAWAL));
+        assertFalse(planner.isDispensable(0));
+        assertFalse(planner.isDispensable(-dollars(20)));
+        assertFalse(planner.isDispensable(dollars(7)));
+        assertFalse(planner.isDispensable(dollars(20) + 1));
+        assertFalse(planner.isDispensable(CashCassettes.MAX_WITHDRAWAL + dollars(5)));
+        assertNull(planner.plan(dollars(7), FULL, FULL));
+        assertNull(planner.plan(CashCassettes.MAX_WITHDRAWAL + dollars(5), FULL, FULL));
+
+        // $10 and $25 cannot make $15, though it is a multiple of their $5 unit
+        DispensePlanner odd = new DispensePlanner(new long[] {dollars(25), dollars(10)}, dollars(100), 10);
+        assertFalse(odd.isDispensable(dollars(15)));
+        assertTrue(odd.isDispensable(dollars(45)));
+    }
+
+    @Test
+    void denominationsMustBeLargestFirst() {
+        assertThrows(IllegalArgumentException.class, () -> new DispensePlanner(new long[] {dollars(10), dollars(20)}, dollars(100), 10));
+        assertThrows(IllegalArgumentException.class, () -> new DispensePlanner(new long[] {dollars(20), dollars(20)}, dollars(100), 10));
+        assertThrows(IllegalArgumentException.class, () -> new DispensePlanner(new long[0], dollars(100), 10));
+    }
+
+    private static long dollars(long dollars) {
+        return dollars * Money.CENTS_PER_DOLLAR;
+    }
+}
@@ -0,0 +1,238 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Records must come back in order after a restart, across segments, with only a damaged tail of the last segment
+// cut off; and each fsync policy must get its records into the file when it promises to
+class JournalTest {
+    private static final int RECORD_SIZE = 8 + 25; // Header and payload of a deposit or withdrawal
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recordsReplayAfterRestart() throws IOException {
+        Path path = directory.resolve("atm.journal");
+        Journal journal = open(path, Journal.FsyncPolicy.NONE, new Recorder());
+        assertEquals(1, journal.appendDeposit(1, 500));
+        assertEquals(2, journal.appendWithdraw(1, 200));
+        assertEquals(3, journal.appendTransfer(1, 2, 100));
+        journal.close();
+
+        Recorder recorder = new Recorder();
+        journal = open(path, Journal.FsyncPolicy.NONE, recorder);
+        assertEquals(List.of("deposit 1 500", "withdraw 1 200", "transfer 1 2 100"), recorder.records);
+        assertEquals(4, journal.appendDeposit(2, 7)); // Numbering carries on
+        journal.close();
+
+        recorder = new Recorder();
+        journal = new Journal(path, Journal.FsyncPolicy.NONE);
+        assertEquals(4, journal.replay(recorder, 2)); // As after a snapshot at 2
+        assertEquals(List.of("transfer 1 2 100", "deposit 2 7"), recorder.records);
+        journal.close();
+    }
+
+    // A crash in the middle of a write leaves part of the last record behind
+    @Test
+    void tornTailIsCutOff() throws IOException {
+        Path path = directory.resolve("atm.journal");
+        writeDeposits(path, 3);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            file.truncate(3 * RECORD_SIZE - 5);
+        }
+        assertTailCutOff(path);
+    }
+
+    @Test
+    void corruptTailIsCutOff() throws IOException {
+        Path path = directory.resolve("atm.journal");
+        writeDeposits(path, 3);
+        flipByte(path, 2 * RECORD_SIZE + RECORD_SIZE - 1); // In the last record's amount, so only its checksum fails
+        assertTailCutOff(path);
+    }
+
+    // Only the last segment can have been written when the process died, so damage anywhere else is not a torn write
+    @Test
+    void damageBeforeTheLastSegmentIsAnError() throws IOException {
+        Path path = directory.resolve("atm.journal");
+        Journal journal = open(path, Journal.FsyncPolicy.NONE, new Recorder());
+        journal.appendDeposit(1, 1);
+        journal.appendDeposit(1, 2);
+        journal.rotate();
+        journal.appendDeposit(1, 3);
+        journal.close();
+        flipByte(path, RECORD_SIZE + RECORD_SIZE - 1);
+
+        Journal reopened = new Journal(path, Journal.FsyncPolicy.NONE);
+        IOException e = assertThrows(IOException.class, () -> reopened.replay(new Recorder()));
+        assertTrue(e.getMessage().contains("damaged"), e.getMessage());
+    }
+
+    @Test
+    void rotationKeepsReplayInOrder() throws IOException {
+        Path path = directory.resolve("atm.journal");
+        Journal journal = open(path, Journal.FsyncPolicy.NONE, new Recorder());
+        journal.appendDeposit(1, 1);
+        assertEquals(1, journal.rotate());
+        assertEquals(1, journal.rotate()); // Nothing new, so no new segment either
+        journal.appendDeposit(1, 2);
+        journal.appendDeposit(1, 3);
+        assertEquals(3, journal.rotate());
+        journal.appendDeposit(1, 4);
+        journal.close();
+        assertTrue(Files.exists(directory.resolve("atm.journal.2")));
+        assertTrue(Files.exists(directory.resolve("atm.journal.4")));
+
+        Recorder recorder = new Recorder();
+        journal = open(path, Journal.FsyncPolicy.NONE, recorder);
+        assertEquals(List.of("deposit 1 1", "deposit 1 2", "deposit 1 3", "deposit 1 4"), recorder.records);
+        assertEquals(5, journal.appendDeposit(1, 5)); // Into the last segment
+        journal.close();
+        assertEquals(2 * RECORD_SIZE, Files.size(directory.resolve("atm.journal.4")));
+
+        recorder = new Recorder();
+        journal = new Journal(path, Journal.FsyncPolicy.NONE);
+        assertEquals(5, journal.replay(recorder, 3));
+        assertEquals(List.of("deposit 1 4", "deposit 1 5"), recorder.records);
+        journal.close();
+    }
+
+    // A committed record is in the file when commit returns, without waiting for the interval
+    @Test
+    void alwaysWritesBeforeCommitReturns() throws IOException {
+        Path path = directory.resolve("atm.journal");
+        Journal journal = new Journal(path, Journal.FsyncPolicy.ALWAYS, 60_000);
+        journal.replay(new Recorder());
+        journal.commit(journal.appendDeposit(1, 1));
+        assertEquals(RECORD_SIZE, Files.size(path));
+        journal.commit(journal.appendDeposit(1, 2));
+        assertEquals(2 * RECORD_SIZE, Files.size(path));
+        journal.close();
+    }
+
+    @Test
+    void intervalWritesInTheBackground() throws Exception {
+        assertWrittenInTheBackground(Journal.FsyncPolicy.INTERVAL);
+    }
+
+    @Test
+    void noneWritesInTheBackground() throws Exception {
+        assertWrittenInTheBackground(Journal.FsyncPolicy.NONE);
+    }
+
+    // Only ALWAYS waits in commit; the others leave the record to the writer's next interval, or to flush
+    private void assertWrittenInTheBackground(Journal.FsyncPolicy policy) throws Exception {
+        Path path = directory.resolve("atm.journal");
+        Journal journal = new Journal(path, policy, 60_000);
+        journal.replay(new Recorder());
+        journal.commit(journal.appendDeposit(1, 1)); // Returns at once; a minute-long interval would stall otherwise
+        journal.flush();
+        assertEquals(RECORD_SIZE, Files.size(path));
+        journal.close();
+
+        Journal reopened = new Journal(path, policy, 5);
+        reopened.replay(new Recorder());
+        reopened.commit(reopened.appendDeposit(1, 2));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.size(path) < 2 * RECORD_SIZE) {
+            assertTrue(System.currentTimeMillis() < deadline, "the writer never wrote the record");
+            Thread.sleep(5);
+        }
+        reopened.close();
+    }
+
+    // The ledger undoes a change the journal refuses to record, so a later snapshot cannot persist it
+    @Test
+    void changeTheJournalRefusesIsUndone() throws IOException {
+        Ledger ledger = TestLedgers.newLedger();
+        Journal journal = new Journal(directory.resolve("atm.journal"), Journal.FsyncPolicy.NONE);
+        ledger.recover(journal);
+        ATMSimulator first = ledger.createAccount(1, 11);
+        ATMSimulator second = ledger.createAccount(2, 22);
+        ledger.deposit(first, 500);
+        journal.close();
+
+        assertThrows(IllegalStateException.class, () -> ledger.deposit(first, 100));
+        assertThrows(IllegalStateException.class, () -> ledger.withdraw(first, 100));
+        assertThrows(IllegalStateException.class, () -> ledger.transfer(first, second, 100));
+        assertThrows(IllegalStateException.class, () -> ledger.changePasscode(first, 33));
+        assertEquals(500, ledger.balance(first));
+        assertEquals(0, ledger.balance(second));
+        assertNotNull(ledger.login(1, 11));
+    }
+
+    private static Journal open(Path path, Journal.FsyncPolicy policy, Recorder recorder) throws IOException {
+        Journal journal = new Journal(path, policy);
+        journal.replay(recorder);
+        return journal;
+    }
+
+    private static void writeDeposits(Path path, int count) throws IOException {
+        Journal journal = open(path, Journal.FsyncPolicy.NONE, new Recorder());
+        for (int i = 1; i <= count; i++) {
+            journal.appendDeposit(1, i);
+        }
+        journal.close();
+        assertEquals(count * RECORD_SIZE, Files.size(path));
+    }
+
+    private static void flipByte(Path path, long position) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            file.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 0xFF)).rewind();
+            file.write(b, position);
+        }
+    }
+
+    // The first two of three deposits survive, the file ends after them, and appends go on from there
+    private static void assertTailCutOff(Path path) throws IOException {
+        Recorder recorder = new Recorder();
+        Journal journal = new Journal(path, Journal.FsyncPolicy.NONE);
+        assertEquals(2, journal.replay(recorder));
+        assertEquals(List.of("deposit 1 1", "deposit 1 2"), recorder.records);
+        assertEquals(2 * RECORD_SIZE, Files.size(path));
+        assertEquals(3, journal.appendDeposit(1, 30));
+        journal.close();
+
+        recorder = new Recorder();
+        journal = open(path, Journal.FsyncPolicy.NONE, recorder);
+        assertEquals(List.of("deposit 1 1", "deposit 1 2", "deposit 1 30"), recorder.records);
+        journal.close();
+    }
+
+    // Keeps the deposits, withdrawals and transfers it is given, in order
+    private static class Recorder extends SnapshotTest.NoRecords {
+        final List<String> records = new ArrayList<>();
+
+        @Override
+        public void onDeposit(int accountNumber, long amount) {
+            records.add("deposit " + accountNumber + " " + amount);
+        }
+
+        @Override
+        public void onWithdraw(int accountNumber, long amount) {
+            records.add("withdraw " + accountNumber + " " + amount);
+        }
+
+        @Override
+        public void onTransfer(int senderNumber, int recipientNumber, long amount) {
+            records.add("transfer " + senderNumber + " " + recipientNumber + " " + amount);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+// Many threads move money between a few accounts at once, so CAS retries and stripe locks are exercised on every
+// operation. The money in the ledger must only ever change by what was deposited and withdrawn.
+class LedgerStressTest {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 200_000;
+    private static final int ACCOUNTS = 16; // Few, so the threads keep colliding
+    private static final long INITIAL_BALANCE = 1_000 * Money.CENTS_PER_DOLLAR;
+
+    @Test
+    void transfersNeverCreateOrDestroyMoney() throws Exception {
+        Ledger ledger = TestLedgers.newLedger(4); // Few stripes, more sharing
+        ATMSimulator[] accounts = new ATMSimulator[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts[i] = ledger.createAccount(i + 1, 1);
+            ledger.deposit(accounts[i], INITIAL_BALANCE);
+        }
+        long initialTotal = ledger.totalBalance();
+
+        // While only transfers run, every consistent read of the total must equal the initial total
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong drifted = new AtomicLong();
+        Thread auditor = new Thread(() -> {
+            while (running.get()) {
+                long total = ledger.totalBalance();
+                if (total != initialTotal) {
+                    drifted.set(total - initialTotal);
+                }
+            }
+        });
+        auditor.start();
+        runThreads(ledger, accounts, false, new AtomicLong());
+        running.set(false);
+        auditor.join();
+        assertEquals(0, drifted.get(), "total balance drifted while transfers were running");
+        assertEquals(initialTotal, ledger.totalBalance());
+
+        // With deposits and withdrawals mixed in, the total moves by exactly what they added and removed
+        AtomicLong net = new AtomicLong();
+        runThreads(ledger, accounts, true, net);
+        assertEquals(initialTotal + net.get(), ledger.totalBalance());
+        for (ATMSimulator account : accounts) {
+            assertTrue(ledger.balance(account) >= 0, "negative balance in account " + account.getAccountNumber());
+        }
+    }
+
+    // A transfer to a full account has to give the money back while another thread keeps filling the sender up.
+    // The refund must wait for room rather than lose the money.
+    @Test
+    void refusedTransfersAreAlwaysRefunded() throws Exception {
+        Ledger ledger = TestLedgers.newLedger(4);
+        ATMSimulator sender = ledger.createAccount(1, 1);
+        ATMSimulator full = ledger.createAccount(2, 2);
+        ledger.deposit(sender, Long.MAX_VALUE - 10);
+        ledger.deposit(full, Long.MAX_VALUE);
+
+        // Only fits while a transfer has the sender's money out, and is taken straight back out again
+        Thread filler = new Thread(() -> {
+            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                if (ledger.deposit(sender, 12) == TransactionResult.SUCCESS) {
+                    ledger.withdraw(sender, 12);
+                }
+            }
+        });
+        filler.start();
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+            assertEquals(TransactionResult.BALANCE_OVERFLOW, ledger.transfer(sender, full, 5));
+        }
+        filler.join();
+        assertEquals(Long.MAX_VALUE - 10, ledger.balance(sender));
+        assertEquals(Long.MAX_VALUE, ledger.balance(full));
+    }
+
+    // Random transfers of up to $10 between random accounts (self-transfers included, which must be refused),
+    // plus deposits and withdrawals if `withCash`; their net effect is added to `net`
+    private static void runThreads(Ledger ledger, ATMSimulator[] accounts, boolean withCash, AtomicLong net) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            SplittableRandom random = new SplittableRandom(t);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    long change = 0;
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        ATMSimulator account = accounts[random.nextInt(ACCOUNTS)];
+                        long amount = 1 + random.nextInt(1_000);
+                        int kind = withCash ? random.nextInt(4) : 0;
+                        if (kind == 1 && ledger.deposit(account, amount) == TransactionResult.SUCCESS) {
+                            change += amount;
+                        } else if (kind == 2 && ledger.withdraw(account, amount) == TransactionResult.SUCCESS) {
+                            change -= amount;
+                        } else if (kind == 0 || kind == 3) {
+                            ledger.transfer(account, accounts[random.nextInt(ACCOUNTS)], amount);
+                        }
+                    }
+                    net.addAndGet(change);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.isEmpty(), () -> "worker failed: " + failures.get(0));
+    }
+}
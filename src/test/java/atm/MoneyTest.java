@@ -0,0 +1,69 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+// Amounts are parsed exactly or not at all: nothing is rounded, and anything that is not a plain amount is refused
+class MoneyTest {
+    @Test
+    void parsesDollarsAndCents() {
+        assertEquals(1200, Money.parse("12"));
+        assertEquals(1250, Money.parse("12.5"));
+        assertEquals(1205, Money.parse("12.05"));
+        assertEquals(1200, Money.parse("12."));
+        assertEquals(50, Money.parse(".5"));
+        assertEquals(7, Money.parse("0.07"));
+        assertEquals(300, Money.parse("+3"));
+        assertEquals(-1250, Money.parse("-12.50"));
+        assertEquals(0, Money.parse("-0"));
+        assertEquals(1250, Money.parse("x12.50y", 1, 6));
+    }
+
+    // Sixteen digits of dollars always fit in a long of cents; more are refused rather than wrapped around
+    @Test
+    void largestAmounts() {
+        assertEquals(999_999_999_999_999_999L, Money.parse("9999999999999999.99"));
+        assertEquals(-999_999_999_999_999_999L, Money.parse("-9999999999999999.99"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("10000000000000000"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("99999999999999999999.99"));
+    }
+
+    // Fractions of a cent are refused, not rounded
+    @Test
+    void atMostTwoDecimals() {
+        assertThrows(NumberFormatException.class, () -> Money.parse("12.345"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("12.999"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("0.001"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("12.500"));
+    }
+
+    @Test
+    void refusesAnythingButAnAmount() {
+        for (String text : new String[] {"", "-", "+", ".", "-.", " 12", "12 ", "$12", "12$", "12abc", "abc12",
+                "1,000", "1e3", "1.2.3", "12.5x", "--12", "+-12", "0x10", "١٢"}) {
+            assertThrows(NumberFormatException.class, () -> Money.parse(text), '"' + text + '"');
+        }
+    }
+
+    @Test
+    void formatsWithTwoDecimals() {
+        assertEquals("0.00", Money.format(0));
+        assertEquals("0.05", Money.format(5));
+        assertEquals("0.50", Money.format(50));
+        assertEquals("12.05", Money.format(1205));
+        assertEquals("-0.05", Money.format(-5));
+        assertEquals("-12.50", Money.format(-1250));
+        assertEquals("92233720368547758.07", Money.format(Long.MAX_VALUE));
+        assertEquals("-92233720368547758.08", Money.format(Long.MIN_VALUE));
+        assertEquals("Balance: 1.00", Money.appendTo(new StringBuilder("Balance: "), 100).toString());
+    }
+
+    @Test
+    void formatThenParseGivesTheSameCents() {
+        for (long cents : new long[] {0, 1, 9, 10, 99, 100, 101, 123_456, -1, -99, -100, -123_456, 999_999_999_999_999_999L}) {
+            assertEquals(cents, Money.parse(Money.format(cents)));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+class PasscodeHasherTest {
+    // Plain passcodes from an old file come back hashed, each in its own place, whichever thread hashed it
+    @Test
+    void upgradeAllKeepsTheOrder() {
+        PasscodeHasher hasher = new PasscodeHasher(1_000, 2, null);
+        List<PasscodeHash> plain = new ArrayList<>();
+        for (int passcode = 0; passcode < 50; passcode++) {
+            plain.add(PasscodeHash.unhashed(passcode));
+        }
+        PasscodeHash[] hashed = hasher.upgradeAll(plain);
+        for (int passcode = 0; passcode < 50; passcode++) {
+            assertTrue(hashed[passcode].isHashed());
+            assertTrue(hashed[passcode].matches(passcode));
+            assertFalse(hashed[passcode].matches(passcode + 1));
+        }
+    }
+
+    // One task holding the only worker and one queued behind it fill a queue of one;
+    // the next request is turned away at once instead of waiting behind them
+    @Test
+    void fullQueueRejects() throws InterruptedException {
+        PasscodeHasher hasher = new PasscodeHasher(1, 1, 1, null);
+        CountDownLatch release = new CountDownLatch(1);
+        HeldPasscodes running = new HeldPasscodes(2, release); // Read by the worker and by the thread upgrading them
+        HeldPasscodes queued = new HeldPasscodes(1, release); // Only by the upgrading thread, once its helper is queued
+        Thread first = new Thread(() -> hasher.upgradeAll(running));
+        first.start();
+        running.entered.await();
+        Thread second = new Thread(() -> hasher.upgradeAll(queued));
+        second.start();
+        queued.entered.await();
+        assertThrows(RejectedExecutionException.class, () -> hasher.hash(3));
+        release.countDown();
+        first.join();
+        second.join();
+    }
+
+    // Two plain passcodes whose reads wait until released, so whichever thread reads one is held there
+    private static final class HeldPasscodes extends AbstractList<PasscodeHash> {
+        final CountDownLatch entered;
+        private final CountDownLatch release;
+
+        HeldPasscodes(int readers, CountDownLatch release) {
+            this.entered = new CountDownLatch(readers);
+            this.release = release;
+        }
+
+        @Override
+        public PasscodeHash get(int index) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return PasscodeHash.unhashed(index);
+        }
+
+        @Override
+        public int size() {
+            return 2;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+// Lookups stop at the first empty slot, so no key may ever sit behind one, however keys are added and reset
+class RateLimiterTest {
+    @Test
+    void blocksAtTheLimitUntilReset() {
+        RateLimiter limiter = new RateLimiter(16, 3, 1, TimeUnit.HOURS);
+        assertFalse(limiter.recordFailure(42));
+        assertFalse(limiter.recordFailure(42));
+        assertFalse(limiter.isBlocked(42));
+        assertTrue(limiter.recordFailure(42));
+        assertTrue(limiter.isBlocked(42));
+        assertTrue(limiter.retryAfterMillis(42) > 0);
+        limiter.reset(42);
+        assertFalse(limiter.isBlocked(42));
+        assertEquals(0, limiter.retryAfterMillis(42));
+    }
+
+    // A small table keeps the keys colliding; resets in between must not hide the keys probed past them
+    @Test
+    void resetKeysDoNotHideOthers() {
+        RateLimiter limiter = new RateLimiter(64, 2, 1, TimeUnit.HOURS);
+        for (int key = 1; key <= 40; key++) {
+            limiter.recordFailure(key);
+            if (key % 3 == 0) {
+                limiter.reset(key - 1);
+            }
+        }
+        for (int key = 1; key <= 40; key++) {
+            if (key % 3 != 2) {
+                assertTrue(limiter.recordFailure(key), "key " + key + " lost its failure");
+            }
+        }
+    }
+}
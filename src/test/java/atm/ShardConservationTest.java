@@ -0,0 +1,161 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Two shards in two real processes, with transfers both ways while one of them is killed and restarted.
+// Once everything in flight has been delivered, the two shards together must hold exactly the money deposited.
+class ShardConservationTest {
+    private static final int ACCOUNTS_PER_SHARD = 4;
+    private static final int TRANSFERS_PER_ACCOUNT = 200;
+    private static final long DEPOSIT_CENTS = 100_00;
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    @TempDir
+    Path directory;
+
+    private final int[] atmPorts = new int[2];
+    private final int[] shardPorts = new int[2];
+    private final Process[] shards = new Process[2];
+
+    @Test
+    void moneyIsConservedAcrossACrash() throws Exception {
+        for (int shard = 0; shard < 2; shard++) {
+            atmPorts[shard] = freePort();
+            shardPorts[shard] = freePort();
+        }
+        try {
+            for (int shard = 0; shard < 2; shard++) {
+                start(shard);
+            }
+            // Even account numbers live on shard 0, odd ones on shard 1
+            for (int i = 0; i < 2 * ACCOUNTS_PER_SHARD; i++) {
+                int account = 1_000 + i;
+                String transcript = converse(atmPorts[account % 2], "1\n" + account + "\n1\n"
+                        + "2\n" + account + "\n1\n2\n" + DEPOSIT_CENTS / 100 + "\n7\n3\n");
+                assertTrue(transcript.contains("You have deposited $100.00"), transcript);
+            }
+
+            ExecutorService clients = Executors.newFixedThreadPool(2 * ACCOUNTS_PER_SHARD);
+            List<Future<String>> transcripts = new ArrayList<>();
+            for (int i = 0; i < 2 * ACCOUNTS_PER_SHARD; i++) {
+                int account = 1_000 + i;
+                int recipient = 1_000 + (i + 1) % (2 * ACCOUNTS_PER_SHARD); // Always on the other shard
+                StringBuilder script = new StringBuilder("2\n" + account + "\n1\n");
+                for (int t = 0; t < TRANSFERS_PER_ACCOUNT; t++) {
+                    script.append("4\n").append(recipient).append("\n1\n");
+                }
+                script.append("7\n3\n");
+                transcripts.add(clients.submit(() -> converse(atmPorts[account % 2], script.toString())));
+            }
+            Thread.sleep(500);
+            shards[1].destroyForcibly().waitFor(); // Mid-transfer, with no chance to flush or close anything
+            start(1);
+            int transferred = 0;
+            for (Future<String> transcript : transcripts) {
+                // Clients of the killed shard were cut off; what they got done still counts
+                transferred += transcript.get().split("You have transferred \\$1\\.00").length - 1;
+            }
+            clients.shutdown();
+            assertTrue(transferred > 0, "no transfer got through");
+
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (true) {
+                long[] first = total(0);
+                long[] second = total(1);
+                if (first[1] == 0 && second[1] == 0) {
+                    assertEquals(2 * ACCOUNTS_PER_SHARD * DEPOSIT_CENTS, first[0] + second[0]);
+                    return;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Transfers still in flight: " + first[1] + " and " + second[1] + " cents");
+                }
+                Thread.sleep(100);
+            }
+        } finally {
+            for (Process shard : shards) {
+                if (shard != null) {
+                    shard.destroyForcibly().waitFor();
+                }
+            }
+        }
+    }
+
+    // Starts the shard's process with its own journal and waits until its ATM port takes connections
+    private void start(int shard) throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "atm.ATMSimulator",
+                "--server", Integer.toString(atmPorts[shard]),
+                "--journal", directory.resolve("shard" + shard + ".journal").toString(),
+                "--shard", Integer.toString(shard),
+                "--shards", "localhost:" + shardPorts[0] + ",localhost:" + shardPorts[1]);
+        builder.redirectErrorStream(true).redirectOutput(directory.resolve("shard" + shard + ".log").toFile());
+        shards[shard] = builder.start();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), atmPorts[shard]).close();
+                return;
+            } catch (IOException e) {
+                if (!shards[shard].isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("Shard " + shard + " did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // The shard's TOTAL answer: the sum of its balances and the amount it has sent and not yet had acknowledged
+    private long[] total(int shard) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), shardPorts[shard])) {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+            out.write("TOTAL\n");
+            out.flush();
+            String[] fields = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))
+                    .readLine().split(" ");
+            return new long[]{Long.parseLong(fields[1]), Long.parseLong(fields[2])};
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Sends the script and returns everything the server said until it hung up, or until the connection broke
+    private static String converse(int port, String script) {
+        StringBuilder transcript = new StringBuilder();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(script.replace("\n", System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+            transcript.append(new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            transcript.append("[").append(e.getMessage()).append("]");
+        }
+        return transcript.toString().replace(System.lineSeparator(), "\n");
+    }
+}
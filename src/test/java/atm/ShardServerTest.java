@@ -0,0 +1,70 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+// A shard only takes transfers from the host of the shard they claim to come from
+class ShardServerTest {
+    @Test
+    void creditFromTheClaimedShardsHostIsApplied() throws IOException {
+        Ledger ledger = shard0("localhost:" + freePort() + ",localhost:" + freePort());
+        ShardServer server = new ShardServer(ledger, ledger.shards().map());
+        try {
+            assertEquals("DONE 1 0", request(ledger, "CREDIT 1 1 1\n2 1 500\n"));
+            assertEquals(500, ledger.balance(ledger.find(2)));
+        } finally {
+            server.close();
+        }
+    }
+
+    // Shard 1 lives on a documentation-only address, so a CREDIT over loopback cannot be from it
+    @Test
+    void creditFromAnotherHostIsRefused() throws IOException {
+        Ledger ledger = shard0("localhost:" + freePort() + ",192.0.2.1:9101");
+        ShardServer server = new ShardServer(ledger, ledger.shards().map());
+        try {
+            String reply = request(ledger, "CREDIT 1 1 1\n2 1 500\n");
+            assertTrue(reply.startsWith("ERROR Transfers from shard 1 cannot come from"), reply);
+            assertEquals(0, ledger.balance(ledger.find(2)));
+            assertEquals("YES", request(ledger, "EXISTS 2\n"), "other requests still work from a shard's host");
+        } finally {
+            server.close();
+        }
+    }
+
+    private static Ledger shard0(String addresses) {
+        Ledger ledger = TestLedgers.newLedger();
+        ledger.enableSharding(ShardMap.parse(0, addresses));
+        ledger.createAccount(2, 2); // Even numbers belong to shard 0
+        return ledger;
+    }
+
+    // Sends the request to the ledger's shard port over loopback and returns the one-line answer
+    private static String request(Ledger ledger, String request) throws IOException {
+        int port = ledger.shards().map().address(0).getPort();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+            out.write(request);
+            out.flush();
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
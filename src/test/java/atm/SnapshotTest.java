@@ -0,0 +1,166 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Snapshots and the journal after them must bring back every account exactly, and a snapshot may only make the
+// journal segments it covers redundant
+class SnapshotTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void snapshotAndJournalRecoverEveryAccount() throws IOException {
+        Path journalPath = directory.resolve("atm.journal");
+        Path snapshotPath = directory.resolve("atm.snapshot");
+        Ledger ledger = TestLedgers.newLedger();
+        Journal journal = new Journal(journalPath, Journal.FsyncPolicy.NONE);
+        ledger.recover(journal, snapshotPath);
+        ATMSimulator first = ledger.createAccount(1, 11);
+        ATMSimulator second = ledger.createAccount(2, 22);
+        ledger.deposit(first, 500);
+        ledger.transfer(first, second, 200);
+        assertEquals(4, ledger.snapshot(snapshotPath));
+        ledger.withdraw(second, 50); // Only in the journal
+        ledger.changePasscode(first, 33);
+        journal.close();
+
+        Snapshot snapshot = Snapshot.read(snapshotPath);
+        assertEquals(4, snapshot.lastSequence());
+        assertEquals(2, snapshot.size());
+
+        Ledger recovered = TestLedgers.newLedger();
+        Journal reopened = new Journal(journalPath, Journal.FsyncPolicy.NONE);
+        assertEquals(6, recovered.recover(reopened, snapshotPath));
+        assertEquals(300, recovered.balance(recovered.find(1)));
+        assertEquals(150, recovered.balance(recovered.find(2)));
+        assertNull(recovered.login(1, 11));
+        assertNotNull(recovered.login(1, 33));
+        assertNotNull(recovered.login(2, 22));
+        reopened.close();
+    }
+
+    // Snapshots written before passcodes were hashed still load, and their passcodes are hashed on the way in
+    @Test
+    void plainPasscodeSnapshotLoads() throws IOException {
+        Path snapshotPath = directory.resolve("old.snapshot");
+        ByteBuffer records = ByteBuffer.allocate(2 * 16).order(ByteOrder.LITTLE_ENDIAN);
+        records.putInt(7).putInt(1234).putLong(9_99);
+        records.putInt(8).putInt(4321).putLong(0);
+        records.flip();
+        CRC32C checksum = new CRC32C();
+        checksum.update(records.duplicate());
+        ByteBuffer file = ByteBuffer.allocate(32 + records.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        file.putInt(0x41544D53).putInt(1).putLong(0).putLong(2).putInt((int) checksum.getValue()).putInt(0).put(records);
+        Files.write(snapshotPath, file.array());
+
+        Ledger ledger = TestLedgers.newLedger();
+        Journal journal = new Journal(directory.resolve("atm.journal"), Journal.FsyncPolicy.NONE);
+        ledger.recover(journal, snapshotPath);
+        assertEquals(9_99, ledger.balance(ledger.find(7)));
+        assertTrue(ledger.find(7).passcode().isHashed());
+        assertTrue(ledger.find(8).passcode().isHashed());
+        assertNotNull(ledger.login(7, 1234));
+        assertNull(ledger.login(8, 1234));
+
+        // Written back in the current format, with the hashes
+        ledger.snapshot(snapshotPath);
+        journal.close();
+        Snapshot rewritten = Snapshot.read(snapshotPath);
+        assertEquals(2, rewritten.size());
+        Ledger reloaded = TestLedgers.newLedger();
+        Journal reopened = new Journal(directory.resolve("atm.journal"), Journal.FsyncPolicy.NONE);
+        reloaded.recover(reopened, snapshotPath);
+        assertNotNull(reloaded.login(8, 4321));
+        reopened.close();
+    }
+
+    @Test
+    void onlyCoveredSegmentsAreDeleted() throws IOException {
+        Path journalPath = directory.resolve("atm.journal");
+        Journal journal = new Journal(journalPath, Journal.FsyncPolicy.NONE);
+        journal.replay(new NoRecords());
+        for (int i = 0; i < 3; i++) {
+            journal.appendDeposit(1, 1); // 1-3 in the journal file itself
+        }
+        assertEquals(3, journal.rotate());
+        for (int i = 0; i < 3; i++) {
+            journal.appendDeposit(1, 1); // 4-6 in atm.journal.4
+        }
+        assertEquals(6, journal.rotate()); // 7 onwards in atm.journal.7
+
+        journal.deleteSegmentsThrough(5); // Covers the first segment but only part of the second
+        assertFalse(Files.exists(journalPath));
+        assertTrue(Files.exists(directory.resolve("atm.journal.4")));
+        assertTrue(Files.exists(directory.resolve("atm.journal.7")));
+
+        journal.deleteSegmentsThrough(6);
+        assertFalse(Files.exists(directory.resolve("atm.journal.4")));
+        assertTrue(Files.exists(directory.resolve("atm.journal.7")), "the current segment is never deleted");
+        journal.close();
+    }
+
+    // Fails the test if the journal holds anything
+    static class NoRecords implements Journal.Visitor {
+        @Override
+        public void onCreate(int accountNumber, PasscodeHash passcode) {
+            throw new AssertionError("unexpected record");
+        }
+
+        @Override
+        public void onDeposit(int accountNumber, long amount) {
+            throw new AssertionError("unexpected record");
+        }
+
+        @Override
+        public void onWithdraw(int accountNumber, long amount) {
+            throw new AssertionError("unexpected record");
+        }
+
+        @Override
+        public void onTransfer(int senderNumber, int recipientNumber, long amount) {
+            throw new AssertionError("unexpected record");
+        }
+
+        @Override
+        public void onPasscodeChange(int accountNumber, PasscodeHash newPasscode) {
+            throw new AssertionError("unexpected record");
+        }
+
+        @Override
+        public void onShardDebit(long transferSequence, int shard, int senderNumber, int recipientNumber, long amount,
+                                 boolean debited) {
+            throw new AssertionError("unexpected record");
+        }
+
+        @Override
+        public void onShardSettle(long transferSequence, int shard, int senderNumber, int recipientNumber, long amount,
+                                  boolean refunded) {
+            throw new AssertionError("unexpected record");
+        }
+
+        @Override
+        public void onShardCredit(int shard, long transferSequence, long batchFirst, int recipientNumber, int senderNumber,
+                                  long amount, boolean applied) {
+            throw new AssertionError("unexpected record");
+        }
+
+        @Override
+        public void onShardPeer(int shard, long nextOutgoing, long batchFirst, long incomingEnd, long rejectedMask) {
+            throw new AssertionError("unexpected record");
+        }
+    }
+}
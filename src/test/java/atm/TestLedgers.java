@@ -0,0 +1,15 @@
+package atm;
+
+// Ledgers for tests: in memory, with passcodes hashed at a single iteration so creating accounts costs nothing
+final class TestLedgers {
+    private TestLedgers() {
+    }
+
+    static Ledger newLedger() {
+        return newLedger(64);
+    }
+
+    static Ledger newLedger(int stripeCount) {
+        return new Ledger(new AccountRegistry(), stripeCount, new PasscodeHasher(1, 1, null));
+    }
+}
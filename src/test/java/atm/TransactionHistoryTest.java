@@ -0,0 +1,123 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// An account's entries are spread over its block in memory, the shared spill buffer and the file; statements must
+// read them back in order from all three, and again after a restart with or without the index
+class TransactionHistoryTest {
+    // More than a full spill buffer's worth of blocks, with a few entries left over in memory
+    private static final int DEPOSITS = 1_200 * TransactionHistory.ENTRIES_PER_BLOCK + 3;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void entriesReadBackFromMemoryBufferAndFile() throws IOException {
+        Path path = directory.resolve("history");
+        Ledger ledger = newLedger();
+        TransactionHistory history = new TransactionHistory(path, ledger.accounts());
+        record(history, ledger);
+        assertStatements(history, ledger, 1);
+        history.close();
+
+        ledger = newLedger();
+        history = new TransactionHistory(path, ledger.accounts());
+        record(history, ledger); // Chained onto the blocks of the first run
+        assertStatements(history, ledger, 2);
+        history.close();
+
+        ledger = newLedger();
+        history = new TransactionHistory(path, ledger.accounts()); // From the index
+        assertStatements(history, ledger, 2);
+        history.close();
+
+        Files.delete(path.resolveSibling("history.index"));
+        ledger = newLedger();
+        history = new TransactionHistory(path, ledger.accounts()); // From a scan, as after a crash
+        assertStatements(history, ledger, 2);
+        history.close();
+    }
+
+    // Spill buffers get their place in the file before they are written, so one can reach the disk while the one
+    // before it never does. After such a crash the account's chain must end at its last block before the hole.
+    @Test
+    void unwrittenBlockEndsTheChain() throws IOException {
+        Path path = directory.resolve("history");
+        Ledger ledger = newLedger();
+        TransactionHistory history = new TransactionHistory(path, ledger.accounts());
+        for (int i = 1; i <= 20 * TransactionHistory.ENTRIES_PER_BLOCK; i++) {
+            history.recordDeposit(ledger.find(1), i); // Twenty blocks, one after the other in the file
+        }
+        history.close();
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.allocate(TransactionHistory.BLOCK_SIZE), 10L * TransactionHistory.BLOCK_SIZE);
+        }
+        Files.delete(path.resolveSibling("history.index"));
+
+        ledger = newLedger();
+        history = new TransactionHistory(path, ledger.accounts());
+        List<TransactionHistory.Entry> all = history.between(ledger.find(1), Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(10 * TransactionHistory.ENTRIES_PER_BLOCK, all.size());
+        assertEquals(10 * TransactionHistory.ENTRIES_PER_BLOCK, all.get(0).amount);
+
+        history.recordDeposit(ledger.find(1), 1_000); // Chained onto the last block before the hole
+        history.close();
+        ledger = newLedger();
+        history = new TransactionHistory(path, ledger.accounts());
+        all = history.between(ledger.find(1), Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(10 * TransactionHistory.ENTRIES_PER_BLOCK + 1, all.size());
+        assertEquals(1_000, all.get(0).amount);
+        assertEquals(10 * TransactionHistory.ENTRIES_PER_BLOCK, all.get(1).amount);
+        history.close();
+    }
+
+    private static Ledger newLedger() {
+        Ledger ledger = TestLedgers.newLedger();
+        ledger.createAccount(1, 1);
+        ledger.createAccount(2, 2);
+        return ledger;
+    }
+
+    private static void record(TransactionHistory history, Ledger ledger) {
+        ATMSimulator first = ledger.find(1);
+        ATMSimulator second = ledger.find(2);
+        for (int i = 1; i <= DEPOSITS; i++) {
+            history.recordDeposit(first, i);
+        }
+        history.recordTransfer(first, second, 5);
+    }
+
+    // Each round of record() must be there once, newest first
+    private static void assertStatements(TransactionHistory history, Ledger ledger, int rounds) throws IOException {
+        List<TransactionHistory.Entry> last = history.last(ledger.find(1), 3);
+        assertEquals(TransactionHistory.Kind.TRANSFER_OUT, last.get(0).kind);
+        assertEquals(2, last.get(0).otherAccount);
+        assertEquals(DEPOSITS, last.get(1).amount);
+        assertEquals(DEPOSITS - 1, last.get(2).amount);
+
+        List<TransactionHistory.Entry> all = history.between(ledger.find(1), Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(rounds * (DEPOSITS + 1), all.size());
+        for (int round = 0; round < rounds; round++) {
+            int start = round * (DEPOSITS + 1) + 1;
+            for (int i = 0; i < DEPOSITS; i++) {
+                assertEquals(DEPOSITS - i, all.get(start + i).amount);
+            }
+        }
+
+        List<TransactionHistory.Entry> received = history.last(ledger.find(2), 10);
+        assertEquals(rounds, received.size());
+        assertEquals(TransactionHistory.Kind.TRANSFER_IN, received.get(0).kind);
+        assertEquals(1, received.get(0).otherAccount);
+    }
+}